@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Fyodor Kravchenko <fedd@vsetec.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities.benchmarks;
+
+import com.vsetec.utilities.Formatter;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formats and parses numbers and dates in several locales, going through the
+ * same prepared values round and round.
+ *
+ * @author fedd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatterBenchmark {
+
+    private static final int VALUES = 1024; // a power of two
+
+    @Param({"en-US", "de-DE", "fr-FR", "ru-RU", "ja-JP"})
+    public String locale;
+
+    @Param({"dd.MM.yyyy HH:mm:ss"})
+    public String datePattern;
+
+    @Param
+    public Formatter.DateEngine dateEngine;
+
+    private final Formatter _formatter = new Formatter();
+    private Locale _locale;
+    private final Number[] _numbers = new Number[VALUES];
+    private final String[] _formattedNumbers = new String[VALUES];
+    private final Long[] _integers = new Long[VALUES];
+    private final String[] _formattedIntegers = new String[VALUES];
+    private final double[] _doubles = new double[VALUES];
+    private final Date[] _dates = new Date[VALUES];
+    private final String[] _formattedDates = new String[VALUES];
+    private final StringBuilder _out = new StringBuilder();
+    private int _index = 0;
+
+    @Setup
+    public void setUp() {
+        _locale = Locale.forLanguageTag(locale);
+        _formatter.setDateEngine(dateEngine);
+        Random random = new Random(42);
+        for (int i = 0; i < VALUES; i++) {
+            _numbers[i] = BigDecimal.valueOf(random.nextInt(100000000), 2);
+            _formattedNumbers[i] = _formatter.number(_numbers[i], _locale);
+            _integers[i] = random.nextLong() % 10000000000L;
+            _formattedIntegers[i] = _formatter.integer(_integers[i], _locale);
+            _doubles[i] = random.nextInt(100000000) / 100.0;
+            _dates[i] = new Date(1500000000000L + random.nextInt(Integer.MAX_VALUE) * 1000L);
+            _formattedDates[i] = _formatter.uDate(_dates[i], datePattern, _locale);
+        }
+    }
+
+    private int _next() {
+        _index = (_index + 1) & (VALUES - 1);
+        return _index;
+    }
+
+    @Benchmark
+    public String formatNumber() {
+        return _formatter.number(_numbers[_next()], _locale);
+    }
+
+    @Benchmark
+    public Number parseNumber() {
+        return _formatter.toNumber(_formattedNumbers[_next()], _locale);
+    }
+
+    @Benchmark
+    public String formatInteger() {
+        return _formatter.integer(_integers[_next()], _locale);
+    }
+
+    @Benchmark
+    public Long parseInteger() {
+        return _formatter.toInteger(_formattedIntegers[_next()], _locale);
+    }
+
+    @Benchmark
+    public long parseLong() {
+        return _formatter.toLong(_formattedIntegers[_next()], _locale);
+    }
+
+    @Benchmark
+    public double parseDouble() {
+        return _formatter.toDouble(_formattedNumbers[_next()], _locale);
+    }
+
+    @Benchmark
+    public StringBuilder formatIntegerTo() {
+        _out.setLength(0);
+        _formatter.integerTo(_out, _integers[_next()].longValue(), _locale);
+        return _out;
+    }
+
+    @Benchmark
+    public StringBuilder formatDoubleTo() {
+        _out.setLength(0);
+        _formatter.numberTo(_out, _doubles[_next()], _locale);
+        return _out;
+    }
+
+    @Benchmark
+    public String formatDate() {
+        return _formatter.uDate(_dates[_next()], datePattern, _locale);
+    }
+
+    @Benchmark
+    public Date parseDate() {
+        return _formatter.toUDate(_formattedDates[_next()], datePattern, _locale);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public String[] formatDoubleColumn() {
+        return _formatter.numbers(_doubles, _locale);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public String[] formatDateColumn() {
+        return _formatter.uDates(_dates, datePattern, _locale);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public Date[] parseDateColumn() {
+        return _formatter.toUDates(_formattedDates, datePattern, _locale);
+    }
+
+    @Benchmark
+    public String formatTime() {
+        return _formatter.time(_dates[_next()], "mm", "Europe/Moscow", _locale);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Fyodor Kravchenko <fedd@vsetec.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities.benchmarks;
+
+import com.vsetec.utilities.MergedMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Gets and puts the keys of a merged map of several layers. Every layer has
+ * its own keys, and a few keys are overridden by every layer.
+ *
+ * @author fedd
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergedMapBenchmark {
+
+    private static final int KEYS = 1024; // a power of two
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int layers;
+
+    @Param({"100"})
+    public int keysPerLayer;
+
+    private MergedMap<String, Object> _map;
+    private final String[] _keys = new String[KEYS];
+    private final String[] _missingKeys = new String[KEYS];
+    private int _index = 0;
+
+    @Setup
+    public void setUp() {
+        _map = new MergedMap<>();
+        for (int layer = 0; layer < layers; layer++) {
+            Map<String, Object> map = new HashMap<>();
+            for (int i = 0; i < keysPerLayer; i++) {
+                map.put("layer" + layer + ".key" + i, i);
+            }
+            for (int i = 0; i < 10; i++) {
+                map.put("common.key" + i, layer);
+            }
+            _map.add(map);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            _keys[i] = random.nextInt(10) == 0
+                    ? "common.key" + random.nextInt(10)
+                    : "layer" + random.nextInt(layers) + ".key" + random.nextInt(keysPerLayer);
+            _missingKeys[i] = "missing.key" + i;
+        }
+    }
+
+    private int _next() {
+        _index = (_index + 1) & (KEYS - 1);
+        return _index;
+    }
+
+    @Benchmark
+    public Object get() {
+        return _map.get(_keys[_next()]);
+    }
+
+    @Benchmark
+    public Object getMissing() {
+        return _map.get(_missingKeys[_next()]);
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        return _map.containsKey(_keys[_next()]);
+    }
+
+    @Benchmark
+    public Object put() {
+        int index = _next();
+        return _map.put(_keys[index], index);
+    }
+
+}
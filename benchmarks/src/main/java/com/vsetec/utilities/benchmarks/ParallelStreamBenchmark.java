@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Fyodor Kravchenko <fedd@vsetec.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities.benchmarks;
+
+import com.vsetec.utilities.ParallelStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads the same source by several readers at once, each in its own thread.
+ * The score is the time to read the whole source by all of them.
+ *
+ * @author fedd
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelStreamBenchmark {
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int readers;
+
+    @Param({"67108864"})
+    public int size;
+
+    @Param({"8192"})
+    public int readSize;
+
+    private byte[] _source;
+    private ExecutorService _executor;
+
+    @Setup
+    public void setUp() {
+        _source = new byte[size];
+        new Random(42).nextBytes(_source);
+        _executor = Executors.newFixedThreadPool(readers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long fanOut() throws Exception {
+        ParallelStream first = new ParallelStream(new ByteArrayInputStream(_source));
+        ParallelStream[] streams = new ParallelStream[readers];
+        streams[0] = first;
+        for (int i = 1; i < readers; i++) {
+            streams[i] = new ParallelStream(first);
+        }
+
+        @SuppressWarnings("unchecked")
+        Future<Long>[] reads = new Future[readers];
+        for (int i = 0; i < readers; i++) {
+            ParallelStream stream = streams[i];
+            reads[i] = _executor.submit(() -> _readAll(stream));
+        }
+        long ret = 0;
+        for (Future<Long> read : reads) {
+            ret += read.get();
+        }
+        return ret;
+    }
+
+    private long _readAll(ParallelStream stream) throws IOException {
+        byte[] buffer = new byte[readSize];
+        long ret = 0;
+        int read;
+        while ((read = stream.read(buffer)) >= 0) {
+            ret += read;
+        }
+        stream.close();
+        if (ret != size) {
+            throw new IllegalStateException("Read " + ret + " bytes of " + size);
+        }
+        return ret;
+    }
+
+}
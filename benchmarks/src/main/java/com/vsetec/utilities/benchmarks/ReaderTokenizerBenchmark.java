@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Fyodor Kravchenko <fedd@vsetec.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities.benchmarks;
+
+import com.vsetec.utilities.ByteTokenizer;
+import com.vsetec.utilities.ReaderTokenizer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tokenizes a text of {@link #TOKENS} records separated by the delimiter. The
+ * score is in tokens per second.
+ *
+ * @author fedd
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReaderTokenizerBenchmark {
+
+    private static final int TOKENS = 100000;
+
+    public enum Delimiter {
+        LF("\n"), CRLF("\r\n"), COMMA(","), DOUBLE_PIPE("||"), BLANK_LINE("\r\n\r\n");
+
+        private final String _string;
+
+        private Delimiter(String string) {
+            _string = string;
+        }
+    }
+
+    @Param
+    public Delimiter delimiter;
+
+    @Param({"80"})
+    public int averageTokenLength;
+
+    private String _text;
+    private byte[] _bytes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String letters = "abcdefghijklmnopqrstuvwxyz0123456789 ;:.-";
+        StringBuilder sb = new StringBuilder(TOKENS * (averageTokenLength + delimiter._string.length()));
+        for (int i = 0; i < TOKENS; i++) {
+            int length = 1 + random.nextInt(averageTokenLength * 2);
+            for (int j = 0; j < length; j++) {
+                sb.append(letters.charAt(random.nextInt(letters.length())));
+            }
+            sb.append(delimiter._string);
+        }
+        _text = sb.toString();
+        _bytes = _text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void tokenize(Blackhole blackhole) throws IOException {
+        Iterator<String> tokens = new ReaderTokenizer(delimiter._string).tokenize(new StringReader(_text));
+        while (tokens.hasNext()) {
+            blackhole.consume(tokens.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void tokenizeWithHeader(Blackhole blackhole) throws IOException {
+        Iterator<String> tokens = new ReaderTokenizer(delimiter._string, 1).tokenize(new StringReader(_text));
+        while (tokens.hasNext()) {
+            blackhole.consume(tokens.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void visitWithHeader(Blackhole blackhole) throws IOException {
+        new ReaderTokenizer(delimiter._string, 1).tokenize(new StringReader(_text), (header, token) -> {
+            blackhole.consume(token.length());
+            return true;
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void tokenizeBytes(Blackhole blackhole) throws IOException {
+        Iterator<ByteBuffer> tokens = new ByteTokenizer(delimiter._string).tokenize(new ByteArrayInputStream(_bytes));
+        while (tokens.hasNext()) {
+            blackhole.consume(tokens.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void visitBytesWithHeader(Blackhole blackhole) throws IOException {
+        new ByteTokenizer(delimiter._string, 1).tokenize(ByteBuffer.wrap(_bytes), (header, token) -> {
+            blackhole.consume(token.remaining());
+            return true;
+        });
+    }
+
+}
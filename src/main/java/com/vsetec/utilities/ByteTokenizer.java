@@ -0,0 +1,433 @@
+/*
+ * Copyright 2019 fedd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits UTF-8 bytes by a delimiter the way {@link ReaderTokenizer} splits
+ * chars, without decoding them. The tokens are the same as those of the
+ * decoded text: each ends with its delimiter, the last one is what's left
+ * after the last delimiter, and the header tokens are prepended to every
+ * following token. Only the tokens that are needed as text have to be
+ * decoded, with {@link #decode(ByteBuffer)}.
+ * <p>
+ * The tokens of a {@link ByteBuffer}, for example a mapped file, are slices
+ * of it, so they aren't copied unless there's a header to prepend. A channel
+ * should be in the blocking mode, a non blocking one is rejected.
+ *
+ * @author fedd
+ */
+public class ByteTokenizer {
+
+    private final String _delimiter;
+    private final int _repeatFirstLines;
+
+    public ByteTokenizer(String delimiter, int repeatFirstLines) {
+        this._delimiter = delimiter;
+        this._repeatFirstLines = repeatFirstLines;
+    }
+
+    public ByteTokenizer(String delimiter) {
+        this._delimiter = delimiter;
+        this._repeatFirstLines = 0;
+    }
+
+    public ByteTokenizer(int repeatFirstLines) {
+        this._delimiter = "\n";
+        this._repeatFirstLines = repeatFirstLines;
+    }
+
+    public ByteTokenizer() {
+        this._delimiter = "\n";
+        this._repeatFirstLines = 0;
+    }
+
+    public Iterator<ByteBuffer> tokenize(final InputStream stream) {
+        return tokenizeWithHeaderAndDelimiter(stream, _delimiter, _repeatFirstLines);
+    }
+
+    public Iterator<ByteBuffer> tokenize(final ReadableByteChannel channel) {
+        return tokenizeWithHeaderAndDelimiter(channel, _delimiter, _repeatFirstLines);
+    }
+
+    public Iterator<ByteBuffer> tokenize(final ByteBuffer buffer) {
+        return tokenizeWithHeaderAndDelimiter(buffer, _delimiter, _repeatFirstLines);
+    }
+
+    public Iterator<ByteBuffer> tokenizeWithHeaderAndDelimiter(final InputStream stream, String delimiter, int headerTokenNumber) {
+        return new TokenIterator(stream, null, null, delimiter)._withHeader(headerTokenNumber);
+    }
+
+    public Iterator<ByteBuffer> tokenizeWithHeaderAndDelimiter(final ReadableByteChannel channel, String delimiter, int headerTokenNumber) {
+        return new TokenIterator(null, channel, null, delimiter)._withHeader(headerTokenNumber);
+    }
+
+    /**
+     * Tokenizes the remaining bytes of the buffer, without changing its
+     * position.
+     *
+     * @param buffer the bytes to tokenize
+     * @param delimiter the delimiter the tokens end with
+     * @param headerTokenNumber how many first tokens make the header
+     * @return the tokens, each a slice of the buffer if there's no header
+     */
+    public Iterator<ByteBuffer> tokenizeWithHeaderAndDelimiter(final ByteBuffer buffer, String delimiter, int headerTokenNumber) {
+        return new TokenIterator(null, null, buffer, delimiter)._withHeader(headerTokenNumber);
+    }
+
+    /**
+     * Receives the tokens one by one, without a buffer made for every token.
+     */
+    public interface TokenVisitor {
+
+        /**
+         * @param header the header tokens, the same for all tokens; empty if
+         * there's no header
+         * @param token the token with its delimiter. The buffer and the bytes
+         * it shows are reused for the next token, so it is only valid until
+         * this method returns
+         * @return false to stop tokenizing
+         */
+        boolean visit(ByteBuffer header, ByteBuffer token);
+    }
+
+    public void tokenize(final InputStream stream, TokenVisitor visitor) throws IOException {
+        new TokenIterator(stream, null, null, _delimiter)._visit(_repeatFirstLines, visitor);
+    }
+
+    public void tokenize(final ReadableByteChannel channel, TokenVisitor visitor) throws IOException {
+        new TokenIterator(null, channel, null, _delimiter)._visit(_repeatFirstLines, visitor);
+    }
+
+    public void tokenize(final ByteBuffer buffer, TokenVisitor visitor) throws IOException {
+        new TokenIterator(null, null, buffer, _delimiter)._visit(_repeatFirstLines, visitor);
+    }
+
+    /**
+     * Tokenizes the stream the same way as
+     * {@link #tokenizeWithHeaderAndDelimiter(InputStream, String, int)},
+     * handing the tokens to the visitor as they are found. The stream is closed
+     * when the tokens end or the visitor stops.
+     *
+     * @param stream the bytes to tokenize
+     * @param delimiter the delimiter the tokens end with
+     * @param headerTokenNumber how many first tokens make the header
+     * @param visitor gets the tokens
+     * @throws IOException if reading fails
+     */
+    public void tokenizeWithHeaderAndDelimiter(final InputStream stream, String delimiter, int headerTokenNumber, TokenVisitor visitor) throws IOException {
+        new TokenIterator(stream, null, null, delimiter)._visit(headerTokenNumber, visitor);
+    }
+
+    public void tokenizeWithHeaderAndDelimiter(final ReadableByteChannel channel, String delimiter, int headerTokenNumber, TokenVisitor visitor) throws IOException {
+        new TokenIterator(null, channel, null, delimiter)._visit(headerTokenNumber, visitor);
+    }
+
+    public void tokenizeWithHeaderAndDelimiter(final ByteBuffer buffer, String delimiter, int headerTokenNumber, TokenVisitor visitor) throws IOException {
+        new TokenIterator(null, null, buffer, delimiter)._visit(headerTokenNumber, visitor);
+    }
+
+    /**
+     * Decodes the remaining bytes of the token, without changing its position.
+     *
+     * @param token a token or a header
+     * @return the text of the token
+     */
+    public static String decode(ByteBuffer token) {
+        if (token.hasArray()) {
+            return new String(token.array(), token.arrayOffset() + token.position(), token.remaining(), StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[token.remaining()];
+        token.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static class TokenIterator implements Iterator<ByteBuffer> {
+
+        private static final int BLOCKSIZE = 8192;
+
+        private final InputStream _stream;
+        private final ReadableByteChannel _channel;
+        private final byte[] _token;
+        private final int[] _fallback; // for every matched length, the length of the longest delimiter prefix that also ends the match
+        private final byte[] _array; // the block read from a stream or a channel, null for a buffer
+        private final ByteBuffer _block;
+        private int _blockPos;
+        private int _blockEnd;
+        private int _tokenStart; // where the last token found starts in the block
+        private byte[] _straddling = new byte[255]; // the start of a token from the previous blocks
+        private int _straddlingLength = 0;
+        private boolean _inputEnded = false;
+        private boolean _endReached = false;
+        private ByteBuffer _header = null;
+
+        private TokenIterator(InputStream stream, ReadableByteChannel channel, ByteBuffer buffer, String delimiter) {
+            byte[] bytes = delimiter.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length == 0) {
+                throw new IllegalArgumentException("Can't tokenize with the empty string");
+            }
+            if (!new String(bytes, StandardCharsets.UTF_8).equals(delimiter)) {
+                throw new IllegalArgumentException("The delimiter isn't a valid UTF-16 string");
+            }
+            // a non blocking channel would have us spin while it has nothing to read
+            if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+                throw new IllegalArgumentException("Can't tokenize a non blocking channel");
+            }
+            // Knuth-Morris-Pratt, the same as for the chars
+            int[] fallback = new int[bytes.length];
+            for (int i = 1, matched = 0; i < bytes.length; i++) {
+                while (matched > 0 && bytes[i] != bytes[matched]) {
+                    matched = fallback[matched - 1];
+                }
+                if (bytes[i] == bytes[matched]) {
+                    matched++;
+                }
+                fallback[i] = matched;
+            }
+            _token = bytes;
+            _fallback = fallback;
+
+            _stream = stream;
+            _channel = channel;
+            if (buffer == null) {
+                _array = new byte[BLOCKSIZE];
+                _block = ByteBuffer.wrap(_array);
+                _blockPos = 0;
+                _blockEnd = 0;
+            } else {
+                _array = null;
+                _block = buffer.duplicate();
+                _blockPos = buffer.position();
+                _blockEnd = buffer.limit();
+            }
+        }
+
+        private TokenIterator _withHeader(int headerTokenNumber) {
+            ByteBuffer header = _readHeader(headerTokenNumber);
+            if (header.hasRemaining()) {
+                _header = header;
+            }
+            return this;
+        }
+
+        private ByteBuffer _readHeader(int headerTokenNumber) {
+            byte[] header = new byte[0];
+            for (int i = 0; i < headerTokenNumber && hasNext(); i++) {
+                ByteBuffer token = next();
+                int length = header.length;
+                header = Arrays.copyOf(header, length + token.remaining());
+                token.get(header, length, token.remaining());
+            }
+            return ByteBuffer.wrap(header);
+        }
+
+        /**
+         * Finds the next token, which is then the bytes in {@link #_straddling}
+         * if there are any, or the bytes of the block from {@link #_tokenStart}
+         * to {@link #_blockPos}.
+         */
+        private void _scanNextToken() throws IOException {
+
+            final byte[] token = _token;
+            final int[] fallback = _fallback;
+            final byte first = token[0];
+            final int last = token.length - 1;
+            final ByteBuffer block = _block;
+            int matched = 0;
+            int start = _blockPos;
+            _straddlingLength = 0;
+
+            while (true) {
+                int end = _blockEnd;
+                int i = _blockPos;
+                while (i < end) {
+                    if (matched == 0) {
+                        while (i < end && block.get(i) != first) {
+                            i++;
+                        }
+                        if (i == end) {
+                            break;
+                        }
+                    }
+
+                    byte curByte = block.get(i++);
+                    while (matched > 0 && curByte != token[matched]) {
+                        matched = fallback[matched - 1];
+                    }
+                    if (curByte == token[matched]) {
+                        if (matched < last) {
+                            matched++;
+                            continue;
+                        }
+                        // a whole UTF-8 sequence can only match at a char boundary
+                        _found(start, i);
+                        return;
+                    }
+                }
+
+                if (_array == null) {
+                    // the buffer is all there is
+                    _found(start, end);
+                    _inputEnded = true;
+                    return;
+                }
+
+                // the token goes on in the next block
+                _straddle(start, end);
+                int read = _read();
+                if (read == -1) {
+                    _tokenStart = 0;
+                    _blockPos = 0;
+                    _blockEnd = 0;
+                    _inputEnded = true;
+                    _close();
+                    return;
+                }
+                _blockPos = 0;
+                _blockEnd = read;
+                start = 0;
+            }
+        }
+
+        private void _found(int start, int end) {
+            _tokenStart = start;
+            _blockPos = end;
+            if (_straddlingLength > 0) {
+                _straddle(start, end);
+            }
+        }
+
+        private void _straddle(int start, int end) {
+            int length = end - start;
+            if (_straddling.length < _straddlingLength + length) {
+                _straddling = Arrays.copyOf(_straddling, Math.max(_straddling.length * 2, _straddlingLength + length));
+            }
+            System.arraycopy(_array, start, _straddling, _straddlingLength, length);
+            _straddlingLength += length;
+        }
+
+        private int _read() throws IOException {
+            if (_stream != null) {
+                return _stream.read(_array, 0, _array.length);
+            }
+            int read;
+            do {
+                ((Buffer) _block).clear();
+                read = _channel.read(_block);
+            } while (read == 0);
+            return read;
+        }
+
+        private void _close() throws IOException {
+            if (_stream != null) {
+                _stream.close();
+            } else if (_channel != null) {
+                _channel.close();
+            }
+        }
+
+        /**
+         * Hands the rest of the tokens to the visitor as views that are reused
+         * for every token, and closes the input.
+         */
+        private void _visit(int headerTokenNumber, TokenVisitor visitor) throws IOException {
+            try {
+                ByteBuffer header = _readHeader(headerTokenNumber);
+                int headerLength = header.remaining();
+                ByteBuffer blockView = _block.duplicate();
+                ByteBuffer straddlingView = ByteBuffer.wrap(_straddling);
+                while (!_endReached) {
+                    _scanNextToken();
+                    _endReached = _inputEnded;
+                    ByteBuffer view;
+                    if (_straddlingLength == 0) {
+                        view = blockView;
+                        ((Buffer) view).clear();
+                        ((Buffer) view).position(_tokenStart).limit(_blockPos);
+                    } else {
+                        if (straddlingView.array() != _straddling) {
+                            straddlingView = ByteBuffer.wrap(_straddling);
+                        }
+                        view = straddlingView;
+                        ((Buffer) view).clear();
+                        ((Buffer) view).limit(_straddlingLength);
+                    }
+                    ((Buffer) header).clear();
+                    ((Buffer) header).limit(headerLength);
+                    if (!visitor.visit(header, view)) {
+                        return;
+                    }
+                }
+            } finally {
+                _close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !_endReached;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if (_endReached) {
+                throw new NoSuchElementException();
+            }
+            try {
+                _scanNextToken();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            _endReached = _inputEnded;
+
+            ByteBuffer ret;
+            if (_array == null) {
+                ret = _block.duplicate();
+                ((Buffer) ret).limit(_blockPos).position(_tokenStart);
+                ret = ret.slice();
+            } else if (_straddlingLength == 0) {
+                ret = ByteBuffer.wrap(Arrays.copyOfRange(_array, _tokenStart, _blockPos));
+            } else {
+                ret = ByteBuffer.wrap(Arrays.copyOf(_straddling, _straddlingLength));
+            }
+
+            if (_header != null) {
+                ByteBuffer joined = ByteBuffer.allocate(_header.remaining() + ret.remaining());
+                joined.put(_header.duplicate()).put(ret);
+                ((Buffer) joined).flip();
+                ret = joined;
+            }
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+}
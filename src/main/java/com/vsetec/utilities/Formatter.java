@@ -18,13 +18,29 @@ package com.vsetec.utilities;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.Format;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.chrono.IsoChronology;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.FormatStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -32,9 +48,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.commons.text.StringEscapeUtils;
 
 /**
@@ -43,16 +64,29 @@ import org.apache.commons.text.StringEscapeUtils;
  */
 public class Formatter {
 
-    private final ThreadLocal<Map<String, Map<String, Map<String, Parser>>>> _formatCache
-            = new ThreadLocal<Map<String, Map<String, Map<String, Parser>>>>() {
-        @Override
-        protected Map<String, Map<String, Map<String, Parser>>> initialValue() {
-            return new HashMap<>();
-        }
-    };
+    /**
+     * What formats and parses the dates.
+     */
+    public enum DateEngine {
+        /**
+         * DateFormat and SimpleDateFormat, a copy for every concurrent use
+         */
+        JAVA_TEXT,
+        /**
+         * Immutable DateTimeFormatter, one copy for the process. The patterns
+         * are those of {@link DateTimeFormatter}, which mostly but not entirely
+         * agree with SimpleDateFormat, and the styles are localized a bit
+         * differently
+         */
+        JAVA_TIME
+    }
+
+    private static final FormatCache CACHE = new FormatCache(1024);
+
     private final TreeMap<Integer, Map<String, List<TimeZone>>> _offsetCountryTimezone = new TreeMap<>();
     private final Map<String, TreeMap<String, String>> _labels = new HashMap<>(); // label code - locale - label text
     private final Set<Locale> _labelLocales = new HashSet<>();
+    private volatile DateEngine _dateEngine = DateEngine.JAVA_TEXT;
 
     public Formatter() {
         try {
@@ -102,118 +136,258 @@ public class Formatter {
 
         assert (locale != null);
 
-        Map<String, Map<String, Map<String, Parser>>> formats = _formatCache.get();
-
-        Map<String, Map<String, Parser>> localeFormats;
-        String localeString = locale.toLanguageTag();
-        localeFormats = formats.get(localeString);
-        if (localeFormats == null) {
-            localeFormats = new HashMap<>();
-            formats.put(localeString, localeFormats);
-        }
+        return (Parser) CACHE._get(new FormatKey(false, pattern, locale, timeZone));
+    }
 
-        Map<String, Parser> timezoneFormats;
-        timezoneFormats = localeFormats.get(timeZone);
-        if (timezoneFormats == null) {
-            timezoneFormats = new HashMap<>();
-            localeFormats.put(timeZone, timezoneFormats);
-        }
+    private static Parser _newParser(String pattern, Locale locale, String timeZone) {
 
         Parser format;
-        format = timezoneFormats.get(pattern);
-        if (format == null) {
-            if (timeZone != null) {
-
-                final DateFormat df;
-                final String trimmedPattern;
-                if (pattern == null) {
-                    trimmedPattern = "mn";
-                } else {
-                    trimmedPattern = pattern.trim();
-                }
+        if (timeZone != null) {
 
-                if (trimmedPattern.length() <= 2) {
-                    char[] formatChars = trimmedPattern.toCharArray();
-                    if (formatChars.length == 1) {
-                        formatChars = new char[]{formatChars[0], 'n'};
-                    } else if (formatChars.length == 0) {
-                        formatChars = new char[]{'m', 'n'};
-                    }
-                    int dateFormat, timeFormat;
-
-                    switch (formatChars[0]) { // date
-                        case 'f':
-                            dateFormat = DateFormat.FULL;
-                            break;
-                        case 'l':
-                            dateFormat = DateFormat.LONG;
-                            break;
-                        case 'm':
-                            dateFormat = DateFormat.MEDIUM;
-                            break;
-                        case 's':
-                            dateFormat = DateFormat.SHORT;
-                            break;
-                        default:
-                            dateFormat = DateFormat.DEFAULT;
-                    }
-                    switch (formatChars[1]) { // time
-                        case 'f':
-                            timeFormat = DateFormat.FULL;
-                            break;
-                        case 'l':
-                            timeFormat = DateFormat.LONG;
-                            break;
-                        case 'm':
-                            timeFormat = DateFormat.MEDIUM;
-                            break;
-                        case 's':
-                            timeFormat = DateFormat.SHORT;
-                            break;
-                        default:
-                            timeFormat = DateFormat.DEFAULT;
-                    }
+            final DateFormat df;
+            final String trimmedPattern;
+            if (pattern == null) {
+                trimmedPattern = "mn";
+            } else {
+                trimmedPattern = pattern.trim();
+            }
 
-                    if (formatChars[0] == 'n') { // no date
-                        if (formatChars[1] == 'n') { // no time
-                            // bs
-                            df = DateFormat.getInstance();
-                        } else { // time only
-                            df = DateFormat.getTimeInstance(timeFormat, locale);
-                        }
-                    } else {
-                        if (formatChars[1] == 'n') { // date only
-                            // bs
-                            df = DateFormat.getDateInstance(dateFormat, locale);
-                        } else { // time only
-                            df = DateFormat.getDateTimeInstance(dateFormat, timeFormat, locale);
-                        }
+            if (trimmedPattern.length() <= 2) {
+                char[] formatChars = trimmedPattern.toCharArray();
+                if (formatChars.length == 1) {
+                    formatChars = new char[]{formatChars[0], 'n'};
+                } else if (formatChars.length == 0) {
+                    formatChars = new char[]{'m', 'n'};
+                }
+                int dateFormat, timeFormat;
+
+                switch (formatChars[0]) { // date
+                    case 'f':
+                        dateFormat = DateFormat.FULL;
+                        break;
+                    case 'l':
+                        dateFormat = DateFormat.LONG;
+                        break;
+                    case 'm':
+                        dateFormat = DateFormat.MEDIUM;
+                        break;
+                    case 's':
+                        dateFormat = DateFormat.SHORT;
+                        break;
+                    default:
+                        dateFormat = DateFormat.DEFAULT;
+                }
+                switch (formatChars[1]) { // time
+                    case 'f':
+                        timeFormat = DateFormat.FULL;
+                        break;
+                    case 'l':
+                        timeFormat = DateFormat.LONG;
+                        break;
+                    case 'm':
+                        timeFormat = DateFormat.MEDIUM;
+                        break;
+                    case 's':
+                        timeFormat = DateFormat.SHORT;
+                        break;
+                    default:
+                        timeFormat = DateFormat.DEFAULT;
+                }
+
+                if (formatChars[0] == 'n') { // no date
+                    if (formatChars[1] == 'n') { // no time
+                        // bs
+                        df = DateFormat.getInstance();
+                    } else { // time only
+                        df = DateFormat.getTimeInstance(timeFormat, locale);
                     }
                 } else {
-                    df = new SimpleDateFormat(pattern, locale);
+                    if (formatChars[1] == 'n') { // date only
+                        // bs
+                        df = DateFormat.getDateInstance(dateFormat, locale);
+                    } else { // time only
+                        df = DateFormat.getDateTimeInstance(dateFormat, timeFormat, locale);
+                    }
                 }
+            } else {
+                df = new SimpleDateFormat(pattern, locale);
+            }
 
-                if (!timeZone.equals("server")) {
-                    df.setTimeZone(TimeZone.getTimeZone(timeZone));
-                }
+            if (!timeZone.equals("server")) {
+                df.setTimeZone(TimeZone.getTimeZone(timeZone));
+            }
 
-                format = new Parser(df, pattern);
+            format = new Parser(df, pattern);
 
+        } else {
+            DecimalFormat nf;
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            if (pattern == null) {
+                nf = new DecimalFormat();
+                nf.setDecimalFormatSymbols(symbols);
             } else {
-                DecimalFormat nf;
-                DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
-                if (pattern == null) {
-                    nf = new DecimalFormat();
-                    nf.setDecimalFormatSymbols(symbols);
+                nf = new DecimalFormat(pattern, symbols);
+            }
+            nf.setParseBigDecimal(true);
+            format = new Parser(nf, pattern);
+        }
+        return format;
+    }
+
+    private static TimeParser _getTimePattern(String pattern, Locale locale, String timeZone) {
+        return (TimeParser) CACHE._get(new FormatKey(true, pattern == null ? "mn" : pattern, locale, timeZone));
+    }
+
+    private static TimeParser _newTimeParser(String pattern, Locale locale, String timeZone) {
+
+        final String trimmedPattern = pattern.trim();
+        DateTimeFormatter dtf;
+        if (trimmedPattern.length() <= 2) {
+            char[] formatChars = trimmedPattern.toCharArray();
+            if (formatChars.length == 1) {
+                formatChars = new char[]{formatChars[0], 'n'};
+            } else if (formatChars.length == 0) {
+                formatChars = new char[]{'m', 'n'};
+            }
+            FormatStyle dateStyle = _formatStyle(formatChars[0]);
+            FormatStyle timeStyle = _formatStyle(formatChars[1]);
+
+            String localized;
+            if (formatChars[0] == 'n') { // no date
+                if (formatChars[1] == 'n') { // no time, like DateFormat.getInstance()
+                    Locale defaultLocale = Locale.getDefault(Locale.Category.FORMAT);
+                    localized = DateTimeFormatterBuilder.getLocalizedDateTimePattern(FormatStyle.SHORT, FormatStyle.SHORT, IsoChronology.INSTANCE, defaultLocale);
+                    locale = defaultLocale;
+                } else { // time only
+                    localized = DateTimeFormatterBuilder.getLocalizedDateTimePattern(null, timeStyle, IsoChronology.INSTANCE, locale);
+                }
+            } else {
+                if (formatChars[1] == 'n') { // date only
+                    localized = DateTimeFormatterBuilder.getLocalizedDateTimePattern(dateStyle, null, IsoChronology.INSTANCE, locale);
                 } else {
-                    nf = new DecimalFormat(pattern, symbols);
+                    localized = DateTimeFormatterBuilder.getLocalizedDateTimePattern(dateStyle, timeStyle, IsoChronology.INSTANCE, locale);
                 }
-                nf.setParseBigDecimal(true);
-                format = new Parser(nf, pattern);
             }
-            timezoneFormats.put(pattern, format);
+            dtf = _ofPattern(localized, locale);
+        } else {
+            dtf = _ofPattern(pattern, locale);
         }
-        return format;
+
+        ZoneId zone;
+        if (timeZone.equals("server")) {
+            zone = ZoneId.systemDefault();
+        } else {
+            zone = TimeZone.getTimeZone(timeZone).toZoneId();
+        }
+
+        return new TimeParser(dtf.withZone(zone), zone, pattern);
+    }
+
+    /**
+     * @return the formatter of the pattern that reads the two digit years like
+     * SimpleDateFormat does, as within 80 years before and 20 years after
+     * now, rather than in this century
+     */
+    private static DateTimeFormatter _ofPattern(String pattern, Locale locale) {
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+        boolean quoted = false;
+        int from = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+                continue;
+            }
+            if (quoted || c != 'y') {
+                continue;
+            }
+            int end = i;
+            while (end < pattern.length() && pattern.charAt(end) == 'y') {
+                end++;
+            }
+            if (end - i == 2) {
+                builder.appendPattern(pattern.substring(from, i));
+                builder.appendValueReduced(ChronoField.YEAR_OF_ERA, 2, 2, LocalDate.now().minusYears(80));
+                from = end;
+            }
+            i = end - 1;
+        }
+        return builder.appendPattern(pattern.substring(from)).toFormatter(locale);
+    }
+
+    private static FormatStyle _formatStyle(char formatChar) {
+        switch (formatChar) {
+            case 'f':
+                return FormatStyle.FULL;
+            case 'l':
+                return FormatStyle.LONG;
+            case 's':
+                return FormatStyle.SHORT;
+            default:
+                return FormatStyle.MEDIUM;
+        }
+    }
+
+    /**
+     * Sets how many formats are kept for all the Formatters of the process.
+     * Beyond that the least recently used are dropped.
+     *
+     * @param capacity 1024 by default
+     */
+    public static void setFormatCacheCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity should be positive: " + capacity);
+        }
+        CACHE._capacity = capacity;
+        CACHE._evict();
+    }
+
+    public static int getFormatCacheCapacity() {
+        return CACHE._capacity;
+    }
+
+    public static int getFormatCacheSize() {
+        return CACHE._entries.size();
+    }
+
+    public static long getFormatCacheHits() {
+        return CACHE._hits.sum();
+    }
+
+    public static long getFormatCacheMisses() {
+        return CACHE._misses.sum();
+    }
+
+    public static long getFormatCacheEvictions() {
+        return CACHE._evictions.sum();
+    }
+
+    public DateEngine getDateEngine() {
+        return _dateEngine;
+    }
+
+    /**
+     * Sets what formats and parses the dates from now on. The Date methods
+     * stay the same with either engine.
+     *
+     * @param dateEngine {@link DateEngine#JAVA_TEXT} by default
+     */
+    public void setDateEngine(DateEngine dateEngine) {
+        _dateEngine = dateEngine;
+    }
+
+    private Date _parseDate(String source, String pattern, Locale locale, String timeZone) {
+        if (_dateEngine == DateEngine.JAVA_TIME) {
+            return _getTimePattern(pattern, locale, timeZone)._parse(source);
+        }
+        return (Date) _getPattern(pattern, locale, timeZone)._parse(source);
+    }
+
+    private String _formatDate(Date source, String pattern, Locale locale, String timeZone) {
+        if (_dateEngine == DateEngine.JAVA_TIME) {
+            return _getTimePattern(pattern, locale, timeZone)._format(source);
+        }
+        return _getPattern(pattern, locale, timeZone)._format(source);
     }
 
     public void addLabels(String locale, Map<String, String> labels) {
@@ -316,7 +490,7 @@ public class Formatter {
     }
 
     public Long toInteger(String source) {
-        return ((Number) _getPattern(null, Locale.US, null)._parse(source)).longValue();
+        return _getPattern(null, Locale.US, null)._parseLong(source);
     }
 
     public String integer(Number source) {
@@ -324,11 +498,49 @@ public class Formatter {
     }
 
     public Long toInteger(String source, Locale locale) {
-        return ((Number) _getPattern(null, locale, null)._parse(source)).longValue();
+        return _getPattern(null, locale, null)._parseLong(source);
     }
 
     public Long toInteger(String source, String locale) {
-        return ((Number) _getPattern(null, Locale.forLanguageTag(locale), null)._parse(source)).longValue();
+        return _getPattern(null, Locale.forLanguageTag(locale), null)._parseLong(source);
+    }
+
+    /**
+     * Parses the whole part of the number, as {@link #toInteger(String)} does,
+     * but without making a Long.
+     *
+     * @param source the text of the number
+     * @return the whole part of the number
+     */
+    public long toLong(String source) {
+        return _getPattern(null, Locale.US, null)._parseLong(source);
+    }
+
+    public long toLong(String source, Locale locale) {
+        return _getPattern(null, locale, null)._parseLong(source);
+    }
+
+    public long toLong(String source, String locale) {
+        return _getPattern(null, Locale.forLanguageTag(locale), null)._parseLong(source);
+    }
+
+    /**
+     * Parses the number as {@link #toNumber(String)} does, but without making
+     * a BigDecimal if the digits fit a double exactly.
+     *
+     * @param source the text of the number
+     * @return the number, rounded to the nearest double
+     */
+    public double toDouble(String source) {
+        return _getPattern(null, Locale.getDefault(), null)._parseDouble(source);
+    }
+
+    public double toDouble(String source, Locale locale) {
+        return _getPattern(null, locale, null)._parseDouble(source);
+    }
+
+    public double toDouble(String source, String locale) {
+        return _getPattern(null, Locale.forLanguageTag(locale), null)._parseDouble(source);
     }
 
     public String integer(Number source, Locale locale) {
@@ -355,99 +567,917 @@ public class Formatter {
         return _getPattern(null, Locale.FRANCE, null)._format(source);
     }
 
+    /**
+     * Appends the number as {@link #number(Number, Locale)} formats it.
+     * Longs, ints and the doubles that need no rounding are written digit by
+     * digit, without a String made, if the locale format is plain: no
+     * currency, percent or exponent.
+     *
+     * @param to where to append
+     * @param source the number
+     * @param locale the locale of the format
+     */
+    public void numberTo(Appendable to, Number source, Locale locale) {
+        _getPattern(null, locale, null)._formatTo(to, source);
+    }
+
+    public void numberTo(Appendable to, Number source) {
+        _getPattern(null, Locale.getDefault(), null)._formatTo(to, source);
+    }
+
+    public void numberTo(Appendable to, long source, Locale locale) {
+        _getPattern(null, locale, null)._formatTo(to, source);
+    }
+
+    public void numberTo(Appendable to, double source, Locale locale) {
+        _getPattern(null, locale, null)._formatTo(to, source);
+    }
+
+    public void integerTo(Appendable to, Number source) {
+        _getPattern(null, Locale.US, null)._formatTo(to, source);
+    }
+
+    public void integerTo(Appendable to, Number source, Locale locale) {
+        _getPattern(null, locale, null)._formatTo(to, source);
+    }
+
+    public void integerTo(Appendable to, long source, Locale locale) {
+        _getPattern(null, locale, null)._formatTo(to, source);
+    }
+
+    public void numberDotTo(Appendable to, Number source) {
+        _getPattern(null, Locale.US, null)._formatTo(to, source);
+    }
+
+    public void numberCommaTo(Appendable to, Number source) {
+        _getPattern(null, Locale.FRANCE, null)._formatTo(to, source);
+    }
+
+    /**
+     * Formats a column of numbers as {@link #number(Number, Locale)} does,
+     * finding the format once for the whole column.
+     *
+     * @param source the numbers, may have nulls
+     * @param locale the locale of the format
+     * @return the texts, null for the nulls
+     */
+    public String[] numbers(Number[] source, Locale locale) {
+        String[] ret = new String[source.length];
+        _getPattern(null, locale, null)._formatAll(source, ret);
+        return ret;
+    }
+
+    public List<String> numbers(List<? extends Number> source, Locale locale) {
+        return Arrays.asList(numbers(source.toArray(new Number[source.size()]), locale));
+    }
+
+    public String[] numbers(long[] source, Locale locale) {
+        Parser parser = _getPattern(null, locale, null);
+        String[] ret = new String[source.length];
+        StringBuilder sb = new StringBuilder(24);
+        for (int i = 0; i < source.length; i++) {
+            sb.setLength(0);
+            parser._formatTo(sb, source[i]);
+            ret[i] = sb.toString();
+        }
+        return ret;
+    }
+
+    public String[] numbers(double[] source, Locale locale) {
+        Parser parser = _getPattern(null, locale, null);
+        String[] ret = new String[source.length];
+        StringBuilder sb = new StringBuilder(24);
+        for (int i = 0; i < source.length; i++) {
+            sb.setLength(0);
+            parser._formatTo(sb, source[i]);
+            ret[i] = sb.toString();
+        }
+        return ret;
+    }
+
+    /**
+     * Appends a column of numbers, formatted as
+     * {@link #number(Number, Locale)} does, with the separator between them.
+     *
+     * @param to where to append
+     * @param source the numbers
+     * @param separator what goes between the numbers
+     * @param locale the locale of the format
+     */
+    public void numbersTo(Appendable to, long[] source, CharSequence separator, Locale locale) {
+        Parser parser = _getPattern(null, locale, null);
+        try {
+            for (int i = 0; i < source.length; i++) {
+                if (i > 0) {
+                    to.append(separator);
+                }
+                parser._formatTo(to, source[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void numbersTo(Appendable to, double[] source, CharSequence separator, Locale locale) {
+        Parser parser = _getPattern(null, locale, null);
+        try {
+            for (int i = 0; i < source.length; i++) {
+                if (i > 0) {
+                    to.append(separator);
+                }
+                parser._formatTo(to, source[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Parses a column of numbers as {@link #toNumber(String, Locale)} does,
+     * finding the format once for the whole column.
+     *
+     * @param source the texts, may have nulls
+     * @param locale the locale of the format
+     * @return the numbers, null for the blanks
+     */
+    public Number[] toNumbers(String[] source, Locale locale) {
+        Number[] ret = new Number[source.length];
+        _getPattern(null, locale, null)._parseAll(source, ret);
+        return ret;
+    }
+
+    public List<Number> toNumbers(List<String> source, Locale locale) {
+        return Arrays.asList(toNumbers(source.toArray(new String[source.size()]), locale));
+    }
+
+    /**
+     * Parses a column of numbers as {@link #toLong(String, Locale)} does,
+     * finding the format once for the whole column. Unlike
+     * {@link #toNumbers(String[], Locale)} it has no place for the blanks.
+     *
+     * @param source the texts, with no nulls or blanks
+     * @param locale the locale of the format
+     * @return the whole parts of the numbers
+     * @throws IllegalArgumentException if a text is null or blank
+     */
+    public long[] toLongs(String[] source, Locale locale) {
+        Parser parser = _getPattern(null, locale, null);
+        long[] ret = new long[source.length];
+        for (int i = 0; i < source.length; i++) {
+            ret[i] = parser._parseLong(_notBlank(source, i));
+        }
+        return ret;
+    }
+
+    /**
+     * Parses a column of numbers as {@link #toDouble(String, Locale)} does,
+     * finding the format once for the whole column. Unlike
+     * {@link #toNumbers(String[], Locale)} it has no place for the blanks.
+     *
+     * @param source the texts, with no nulls or blanks
+     * @param locale the locale of the format
+     * @return the numbers, rounded to the nearest doubles
+     * @throws IllegalArgumentException if a text is null or blank
+     */
+    public double[] toDoubles(String[] source, Locale locale) {
+        Parser parser = _getPattern(null, locale, null);
+        double[] ret = new double[source.length];
+        for (int i = 0; i < source.length; i++) {
+            ret[i] = parser._parseDouble(_notBlank(source, i));
+        }
+        return ret;
+    }
+
+    private static String _notBlank(String[] source, int index) {
+        String text = source[index];
+        if (text == null || text.trim().length() == 0) {
+            throw new IllegalArgumentException("The text " + index + " of the column is "
+                    + (text == null ? "null" : "blank") + ", it can't be a primitive number");
+        }
+        return text;
+    }
+
+    /**
+     * Formats a column of dates as {@link #time(Date, String, String, Locale)}
+     * does, finding the format once for the whole column.
+     *
+     * @param source the dates, may have nulls
+     * @param pattern the pattern or the style
+     * @param timeZone the timezone, or "server"
+     * @param locale the locale of the format
+     * @return the texts, null for the nulls
+     */
+    public String[] times(Date[] source, String pattern, String timeZone, Locale locale) {
+        String[] ret = new String[source.length];
+        if (_dateEngine == DateEngine.JAVA_TIME) {
+            TimeParser parser = _getTimePattern(pattern, locale, timeZone);
+            for (int i = 0; i < source.length; i++) {
+                ret[i] = source[i] == null ? null : parser._format(source[i]);
+            }
+        } else {
+            _getPattern(pattern, locale, timeZone)._formatAll(source, ret);
+        }
+        return ret;
+    }
+
+    public Date[] toTimes(String[] source, String pattern, String timeZone, Locale locale) {
+        Date[] ret = new Date[source.length];
+        if (_dateEngine == DateEngine.JAVA_TIME) {
+            TimeParser parser = _getTimePattern(pattern, locale, timeZone);
+            for (int i = 0; i < source.length; i++) {
+                ret[i] = parser._parse(source[i]);
+            }
+        } else {
+            _getPattern(pattern, locale, timeZone)._parseAll(source, ret);
+        }
+        return ret;
+    }
+
+    public String[] uDates(Date[] source, String pattern, Locale locale) {
+        return times(source, pattern, "GMT", locale);
+    }
+
+    public Date[] toUDates(String[] source, String pattern, Locale locale) {
+        return toTimes(source, pattern, "GMT", locale);
+    }
+
     public Date toUDate(String source) {
-        return (Date) _getPattern("mn", Locale.US, "GMT")._parse(source);
+        return _parseDate(source, "mn", Locale.US, "GMT");
     }
 
     public String uDate(Date source) {
-        return _getPattern("mn", Locale.US, "GMT")._format(source);
+        return _formatDate(source, "mn", Locale.US, "GMT");
     }
 
     public Date toUDate(String source, String pattern) {
-        return (Date) _getPattern(pattern, Locale.US, "GMT")._parse(source);
+        return _parseDate(source, pattern, Locale.US, "GMT");
     }
 
     public String uDate(Date source, String pattern) {
-        return _getPattern(pattern, Locale.US, "GMT")._format(source);
+        return _formatDate(source, pattern, Locale.US, "GMT");
     }
 
     public Date toUDate(String source, String pattern, Locale locale) {
-        return (Date) _getPattern(pattern, locale, "GMT")._parse(source);
+        return _parseDate(source, pattern, locale, "GMT");
     }
 
     public Date toUDate(String source, String pattern, String locale) {
-        return (Date) _getPattern(pattern, Locale.forLanguageTag(locale), "GMT")._parse(source);
+        return _parseDate(source, pattern, Locale.forLanguageTag(locale), "GMT");
     }
 
     public String uDate(Date source, String pattern, Locale locale) {
-        return _getPattern(pattern, locale, "GMT")._format(source);
+        return _formatDate(source, pattern, locale, "GMT");
     }
 
     public String uDate(Date source, String pattern, String locale) {
-        return _getPattern(pattern, Locale.forLanguageTag(locale), "GMT")._format(source);
+        return _formatDate(source, pattern, Locale.forLanguageTag(locale), "GMT");
     }
 
     public Date toTime(String source, String timeZone) {
-        return (Date) _getPattern("mm", Locale.US, timeZone)._parse(source);
+        return _parseDate(source, "mm", Locale.US, timeZone);
     }
 
     public String time(Date source, String timeZone) {
-        return _getPattern("mm", Locale.US, timeZone)._format(source);
+        return _formatDate(source, "mm", Locale.US, timeZone);
     }
 
     public Date toTime(String source, String pattern, String timeZone) {
-        return (Date) _getPattern(pattern, Locale.US, timeZone)._parse(source);
+        return _parseDate(source, pattern, Locale.US, timeZone);
     }
 
     public String time(Date source, String pattern, String timeZone) {
-        return _getPattern(pattern, Locale.US, timeZone)._format(source);
+        return _formatDate(source, pattern, Locale.US, timeZone);
     }
 
     public Date toTime(String source, String pattern, String timeZone, Locale locale) {
-        return (Date) _getPattern(pattern, locale, timeZone)._parse(source);
+        return _parseDate(source, pattern, locale, timeZone);
     }
 
     public Date toTime(String source, String pattern, String timeZone, String locale) {
-        return (Date) _getPattern(pattern, Locale.forLanguageTag(locale), timeZone)._parse(source);
+        return _parseDate(source, pattern, Locale.forLanguageTag(locale), timeZone);
     }
 
     public String time(Date source, String pattern, String timeZone, String locale) {
-        return _getPattern(pattern, Locale.forLanguageTag(locale), timeZone)._format(source);
+        return _formatDate(source, pattern, Locale.forLanguageTag(locale), timeZone);
     }
 
     public String time(Date source, String pattern, String timeZone, Locale locale) {
-        return _getPattern(pattern, locale, timeZone)._format(source);
+        return _formatDate(source, pattern, locale, timeZone);
     }
 
-    private class Parser {
+    private static class FormatKey {
 
-        private final Format _format;
+        private final boolean _javaTime;
         private final String _pattern;
+        private final Locale _locale;
+        private final String _timeZone;
+        private final int _hash;
+
+        private FormatKey(boolean javaTime, String pattern, Locale locale, String timeZone) {
+            _javaTime = javaTime;
+            _pattern = pattern;
+            _locale = locale;
+            _timeZone = timeZone;
+            _hash = ((Boolean.hashCode(javaTime) * 31 + Objects.hashCode(pattern)) * 31 + locale.hashCode()) * 31 + Objects.hashCode(timeZone);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FormatKey)) {
+                return false;
+            }
+            FormatKey other = (FormatKey) obj;
+            return _hash == other._hash && _javaTime == other._javaTime && Objects.equals(_pattern, other._pattern)
+                    && _locale.equals(other._locale) && Objects.equals(_timeZone, other._timeZone);
+        }
+    }
+
+    /**
+     * The formats of all the Formatters, up to a number. When there are more,
+     * the least recently used ones are dropped.
+     */
+    private static class FormatCache {
+
+        private final ConcurrentHashMap<FormatKey, CacheEntry> _entries = new ConcurrentHashMap<>();
+        private final LongAdder _hits = new LongAdder();
+        private final LongAdder _misses = new LongAdder();
+        private final LongAdder _evictions = new LongAdder();
+        private final AtomicLong _clock = new AtomicLong(); // ticks with every use of another format
+        private volatile int _capacity;
+
+        private FormatCache(int capacity) {
+            _capacity = capacity;
+        }
+
+        private Object _get(FormatKey key) {
+            CacheEntry entry = _entries.get(key);
+            if (entry != null) {
+                _hits.increment();
+                // the entry that holds the last tick is the most recent already,
+                // so a run of hits on one format doesn't write the shared clock
+                if (entry._used != _clock.get()) {
+                    entry._used = _clock.incrementAndGet();
+                }
+                return entry._value;
+            }
+
+            _misses.increment();
+            Object value = key._javaTime
+                    ? _newTimeParser(key._pattern, key._locale, key._timeZone)
+                    : _newParser(key._pattern, key._locale, key._timeZone);
+            entry = new CacheEntry(value, _clock.incrementAndGet());
+            CacheEntry existing = _entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                return existing._value;
+            }
+            if (_entries.size() > _capacity) {
+                _evict();
+            }
+            return value;
+        }
+
+        private synchronized void _evict() {
+            while (_entries.size() > _capacity) {
+                Map.Entry<FormatKey, CacheEntry> eldest = null;
+                for (Map.Entry<FormatKey, CacheEntry> candidate : _entries.entrySet()) {
+                    if (eldest == null || candidate.getValue()._used < eldest.getValue()._used) {
+                        eldest = candidate;
+                    }
+                }
+                if (eldest != null && _entries.remove(eldest.getKey(), eldest.getValue())) {
+                    _evictions.increment();
+                }
+            }
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final Object _value;
+        private volatile long _used; // the clock when it was last used
+
+        private CacheEntry(Object value, long used) {
+            _value = value;
+            _used = used;
+        }
+    }
+
+    /**
+     * A Format shared by the threads. Format isn't thread safe, so every
+     * thread takes a copy from a few idle ones, or clones a new one.
+     */
+    private static class Parser {
+
+        private static final int IDLE = Math.min(16, Runtime.getRuntime().availableProcessors());
+
+        private final Format _format; // the one to clone
+        private final String _pattern;
+        private final AtomicReferenceArray<Format> _idle = new AtomicReferenceArray<>(IDLE);
+        private final NumberLayout _layout; // to write the numbers without the format, if it's simple
 
         private Parser(Format format, String pattern) {
             _format = format;
             _pattern = pattern;
+            _layout = format instanceof DecimalFormat ? NumberLayout._of((DecimalFormat) format) : null;
+        }
+
+        private Format _take() {
+            int start = (int) Thread.currentThread().getId();
+            for (int i = 0; i < IDLE; i++) {
+                int slot = (start + i) % IDLE;
+                Format format = _idle.get(slot);
+                if (format != null && _idle.compareAndSet(slot, format, null)) {
+                    return format;
+                }
+            }
+            return (Format) _format.clone();
+        }
+
+        private void _give(Format format) {
+            int start = (int) Thread.currentThread().getId();
+            for (int i = 0; i < IDLE; i++) {
+                int slot = (start + i) % IDLE;
+                if (_idle.get(slot) == null && _idle.compareAndSet(slot, null, format)) {
+                    return;
+                }
+            }
         }
 
         private String _format(Object object) {
-            return _format.format(object);
+            if (_layout != null) {
+                StringBuilder sb = new StringBuilder(24);
+                try {
+                    if (_layout._accepts(object)) {
+                        _layout._append(sb, ((Number) object).longValue());
+                        return sb.toString();
+                    }
+                    if ((object instanceof Double || object instanceof Float) && _layout._append(sb, ((Number) object).doubleValue())) {
+                        return sb.toString();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            Format format = _take();
+            String ret = format.format(object);
+            _give(format);
+            return ret;
+        }
+
+        private void _formatTo(Appendable to, Number number) {
+            try {
+                if (_layout != null) {
+                    if (_layout._accepts(number)) {
+                        _layout._append(to, number.longValue());
+                        return;
+                    }
+                    if ((number instanceof Double || number instanceof Float) && _layout._append(to, number.doubleValue())) {
+                        return;
+                    }
+                }
+                Format format = _take();
+                String ret = format.format(number);
+                _give(format);
+                to.append(ret);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void _formatTo(Appendable to, long number) {
+            try {
+                if (_layout != null) {
+                    _layout._append(to, number);
+                } else {
+                    to.append(_format(number));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void _formatTo(Appendable to, double number) {
+            try {
+                if (_layout == null || !_layout._append(to, number)) {
+                    to.append(_format(number));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         private Object _parse(String source) {
             if (source == null || source.trim().length() == 0) {
                 return null;
             }
-            Object ret;
+            if (_layout != null) {
+                ParsedNumber parsed = new ParsedNumber();
+                if (_layout._parse(source, parsed)) {
+                    return BigDecimal.valueOf(parsed._negative ? -parsed._unscaled : parsed._unscaled, parsed._scale);
+                }
+            }
+            Format format = _take();
+            Object ret = _parseWith(format, source);
+            _give(format);
+            return ret;
+        }
+
+        private Object _parseWith(Format format, String source) {
             try {
-                ret = _format.parseObject(source);
+                return format.parseObject(source);
             } catch (ParseException e) {
                 throw new RuntimeException("The " + _format.getClass().getSimpleName()
                         + (_pattern != null ? " (" + _pattern + ")" : "") + " failed to parse the following: " + source, e);
             }
+        }
+
+        /**
+         * Formats the objects with a format taken once for all of them. The
+         * nulls stay nulls.
+         */
+        private void _formatAll(Object[] source, String[] to) {
+            Format format = null;
+            StringBuilder sb = new StringBuilder(24);
+            try {
+                for (int i = 0; i < source.length; i++) {
+                    Object object = source[i];
+                    if (object == null) {
+                        to[i] = null;
+                        continue;
+                    }
+                    if (_layout != null) {
+                        sb.setLength(0);
+                        if (_layout._accepts(object)) {
+                            _layout._append(sb, ((Number) object).longValue());
+                            to[i] = sb.toString();
+                            continue;
+                        }
+                        if ((object instanceof Double || object instanceof Float) && _layout._append(sb, ((Number) object).doubleValue())) {
+                            to[i] = sb.toString();
+                            continue;
+                        }
+                    }
+                    if (format == null) {
+                        format = _take();
+                    }
+                    to[i] = format.format(object);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (format != null) {
+                    _give(format);
+                }
+            }
+        }
+
+        /**
+         * Parses the texts with a format taken once for all of them. The
+         * blanks become nulls.
+         */
+        private void _parseAll(String[] source, Object[] to) {
+            Format format = null;
+            ParsedNumber parsed = new ParsedNumber();
+            try {
+                for (int i = 0; i < source.length; i++) {
+                    String text = source[i];
+                    if (text == null || text.trim().length() == 0) {
+                        to[i] = null;
+                        continue;
+                    }
+                    if (_layout != null && _layout._parse(text, parsed)) {
+                        to[i] = BigDecimal.valueOf(parsed._negative ? -parsed._unscaled : parsed._unscaled, parsed._scale);
+                        continue;
+                    }
+                    if (format == null) {
+                        format = _take();
+                    }
+                    to[i] = _parseWith(format, text);
+                }
+            } finally {
+                if (format != null) {
+                    _give(format);
+                }
+            }
+        }
+
+        /**
+         * @return the whole part of the number, like
+         * {@link BigDecimal#longValue()} of the parsed number
+         */
+        private long _parseLong(String source) {
+            if (_layout != null && source != null) {
+                ParsedNumber parsed = new ParsedNumber();
+                if (_layout._parse(source, parsed)) {
+                    long ret = parsed._scale < NumberLayout.POWERS.length ? parsed._unscaled / NumberLayout.POWERS[parsed._scale] : 0;
+                    return parsed._negative ? -ret : ret;
+                }
+            }
+            return _parseOrFail(source).longValue();
+        }
+
+        private double _parseDouble(String source) {
+            if (_layout != null && source != null) {
+                ParsedNumber parsed = new ParsedNumber();
+                if (_layout._parse(source, parsed) && parsed._unscaled < 1L << 53 && parsed._scale < NumberLayout.DOUBLEPOWERS.length) {
+                    if (parsed._unscaled == 0) {
+                        return 0;
+                    }
+                    // both are exact, so the division rounds correctly
+                    double ret = parsed._unscaled / NumberLayout.DOUBLEPOWERS[parsed._scale];
+                    return parsed._negative ? -ret : ret;
+                }
+            }
+            return _parseOrFail(source).doubleValue();
+        }
+
+        private Number _parseOrFail(String source) {
+            Number ret = (Number) _parse(source);
+            if (ret == null) {
+                throw new RuntimeException("The " + _format.getClass().getSimpleName()
+                        + (_pattern != null ? " (" + _pattern + ")" : "") + " failed to parse the following: " + source);
+            }
             return ret;
         }
     }
 
+    private static class ParsedNumber {
+
+        private long _unscaled;
+        private int _scale;
+        private boolean _negative;
+    }
+
+    private static class TimeParser {
+
+        private final DateTimeFormatter _formatter;
+        private final ZoneId _zone;
+        private final String _pattern;
+
+        private TimeParser(DateTimeFormatter formatter, ZoneId zone, String pattern) {
+            _formatter = formatter;
+            _zone = zone;
+            _pattern = pattern;
+        }
+
+        private String _format(Date date) {
+            return _formatter.format(date.toInstant());
+        }
+
+        private Date _parse(String source) {
+            if (source == null || source.trim().length() == 0) {
+                return null;
+            }
+            try {
+                // like DateFormat, what follows the date is ignored
+                TemporalAccessor parsed = _formatter.parse(source, new ParsePosition(0));
+                if (parsed.isSupported(ChronoField.INSTANT_SECONDS)) {
+                    return Date.from(Instant.from(parsed));
+                }
+                // like DateFormat, the missing fields are from 1970-01-01 00:00
+                LocalDate date = parsed.query(TemporalQueries.localDate());
+                if (date == null) {
+                    date = LocalDate.of(_field(parsed, ChronoField.YEAR, 1970),
+                            _field(parsed, ChronoField.MONTH_OF_YEAR, 1), _field(parsed, ChronoField.DAY_OF_MONTH, 1));
+                }
+                LocalTime time = parsed.query(TemporalQueries.localTime());
+                if (time == null) {
+                    time = LocalTime.MIDNIGHT;
+                }
+                ZoneId zone = parsed.query(TemporalQueries.zone());
+                return Date.from(ZonedDateTime.of(date, time, zone != null ? zone : _zone).toInstant());
+            } catch (DateTimeException e) {
+                throw new RuntimeException("The DateTimeFormatter"
+                        + (_pattern != null ? " (" + _pattern + ")" : "") + " failed to parse the following: " + source, e);
+            }
+        }
+
+        private static int _field(TemporalAccessor parsed, ChronoField field, int def) {
+            return parsed.isSupported(field) ? parsed.get(field) : def;
+        }
+    }
+
+    /**
+     * What a plain DecimalFormat writes: the prefix, the grouped integer
+     * digits, the fraction digits and the suffix. It writes the longs, and
+     * the doubles that are exact in the fraction digits, the same as the
+     * DecimalFormat.
+     */
+    private static class NumberLayout {
+
+        private static final long[] POWERS = new long[19]; // 1 to 10^18
+        private static final double[] DOUBLEPOWERS = new double[23]; // 1 to 10^22, all exact
+        private static final double DOUBLELIMIT = 1L << 50; // the scaled doubles below it are finer than the fraction digits
+        private static final long MAXUNSCALED = Long.MAX_VALUE / 10 - 1; // another digit fits
+
+        static {
+            POWERS[0] = 1;
+            for (int i = 1; i < POWERS.length; i++) {
+                POWERS[i] = POWERS[i - 1] * 10;
+            }
+            DOUBLEPOWERS[0] = 1;
+            for (int i = 1; i < DOUBLEPOWERS.length; i++) {
+                DOUBLEPOWERS[i] = DOUBLEPOWERS[i - 1] * 10;
+            }
+        }
+
+        private final String _positivePrefix;
+        private final String _positiveSuffix;
+        private final String _negativePrefix;
+        private final String _negativeSuffix;
+        private final char _zero;
+        private final char _groupingSeparator;
+        private final char _decimalSeparator;
+        private final int _groupingSize; // 0 for no grouping
+        private final int _minInteger;
+        private final int _minFraction;
+        private final int _maxFraction;
+        private final boolean _parsesGrouping;
+        private final String _exponent;
+        private final boolean _parsable; // the prefixes and suffixes don't get in the way of parsing
+
+        private NumberLayout(DecimalFormat format, DecimalFormatSymbols symbols) {
+            _positivePrefix = format.getPositivePrefix();
+            _positiveSuffix = format.getPositiveSuffix();
+            _negativePrefix = format.getNegativePrefix();
+            _negativeSuffix = format.getNegativeSuffix();
+            _zero = symbols.getZeroDigit();
+            _groupingSeparator = symbols.getGroupingSeparator();
+            _decimalSeparator = symbols.getDecimalSeparator();
+            _groupingSize = format.isGroupingUsed() ? format.getGroupingSize() : 0;
+            _minInteger = format.getMinimumIntegerDigits();
+            _minFraction = format.getMinimumFractionDigits();
+            _maxFraction = format.getMaximumFractionDigits();
+            _parsesGrouping = format.isGroupingUsed();
+            _exponent = symbols.getExponentSeparator();
+            _parsable = _positivePrefix.isEmpty() && _positiveSuffix.isEmpty() && _negativeSuffix.isEmpty()
+                    && !_negativePrefix.isEmpty() && _groupingSeparator != _decimalSeparator && !_exponent.isEmpty();
+        }
+
+        /**
+         * @return the layout, or null if the format is not plain enough
+         */
+        private static NumberLayout _of(DecimalFormat format) {
+            String pattern = format.toPattern();
+            if (pattern.indexOf('E') >= 0 || pattern.indexOf('\u00A4') >= 0 || format.getMultiplier() != 1
+                    || format.isDecimalSeparatorAlwaysShown() || format.getMinimumIntegerDigits() < 1
+                    || format.getMaximumIntegerDigits() < POWERS.length + 1 || format.getMinimumFractionDigits() > format.getMaximumFractionDigits()) {
+                return null;
+            }
+            return new NumberLayout(format, format.getDecimalFormatSymbols());
+        }
+
+        /**
+         * Parses the number as the DecimalFormat does, with the BigDecimal
+         * scale being the number of the fraction digits.
+         *
+         * @return false if the DecimalFormat has to parse it: the number
+         * doesn't fit a long, has an exponent, has no digits, or has the
+         * digits the layout doesn't know
+         */
+        private boolean _parse(String source, ParsedNumber to) {
+            if (!_parsable) {
+                return false;
+            }
+            int length = source.length();
+            boolean negative = source.startsWith(_negativePrefix);
+            int i = negative ? _negativePrefix.length() : 0;
+            long unscaled = 0;
+            int scale = 0;
+            boolean digits = false;
+            boolean decimal = false;
+            for (; i < length; i++) {
+                char ch = source.charAt(i);
+                int digit;
+                if (ch >= '0' && ch <= '9') {
+                    digit = ch - '0';
+                } else if (ch >= _zero && ch <= _zero + 9) {
+                    digit = ch - _zero;
+                } else if (ch == _decimalSeparator) {
+                    if (decimal) {
+                        break;
+                    }
+                    decimal = true;
+                    continue;
+                } else if (ch == _groupingSeparator && _parsesGrouping) {
+                    if (decimal) {
+                        break;
+                    }
+                    continue;
+                } else if (Character.isDigit(ch) || source.startsWith(_exponent, i)) {
+                    return false;
+                } else {
+                    break; // like DecimalFormat, ignore the rest
+                }
+                if (unscaled > MAXUNSCALED) {
+                    return false;
+                }
+                unscaled = unscaled * 10 + digit;
+                digits = true;
+                if (decimal) {
+                    scale++;
+                }
+            }
+            if (!digits) {
+                return false;
+            }
+            to._unscaled = unscaled;
+            to._scale = scale;
+            to._negative = negative;
+            return true;
+        }
+
+        private boolean _accepts(Object number) {
+            return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+        }
+
+        private void _append(Appendable to, long number) throws IOException {
+            if (number < 0) {
+                to.append(_negativePrefix);
+                _digits(to, number, 0);
+                to.append(_negativeSuffix);
+            } else {
+                to.append(_positivePrefix);
+                _digits(to, -number, 0);
+                to.append(_positiveSuffix);
+            }
+        }
+
+        /**
+         * @return false if the number has to be rounded, so it wasn't written
+         */
+        private boolean _append(Appendable to, double number) throws IOException {
+            if (_maxFraction > 15) {
+                return false;
+            }
+            double scale = POWERS[_maxFraction];
+            double scaled = Math.abs(number) * scale;
+            if (!(scaled < DOUBLELIMIT)) { // also NaN
+                return false;
+            }
+            double rounded = Math.rint(scaled);
+            if (rounded / scale != Math.abs(number)) {
+                return false; // the shortest decimal of the double has more fraction digits
+            }
+            long digits = -(long) rounded;
+            int fraction = _maxFraction;
+            while (fraction > _minFraction && digits % 10 == 0) {
+                digits /= 10;
+                fraction--;
+            }
+            if (Double.doubleToRawLongBits(number) < 0) { // also -0.0, like DecimalFormat
+                to.append(_negativePrefix);
+                _digits(to, digits, fraction);
+                to.append(_negativeSuffix);
+            } else {
+                to.append(_positivePrefix);
+                _digits(to, digits, fraction);
+                to.append(_positiveSuffix);
+            }
+            return true;
+        }
+
+        /**
+         * @param digits the negated digits, to have room for Long.MIN_VALUE
+         * @param fraction how many of the digits are after the separator
+         */
+        private void _digits(Appendable to, long digits, int fraction) throws IOException {
+            long integer = digits / POWERS[fraction];
+            long rest = digits % POWERS[fraction];
+
+            int count = 0;
+            while (count < POWERS.length && integer <= -POWERS[count]) {
+                count++;
+            }
+            for (int position = Math.max(count, _minInteger) - 1; position >= 0; position--) {
+                int digit = position < count ? (int) -(integer / POWERS[position] % 10) : 0;
+                to.append((char) (_zero + digit));
+                if (_groupingSize > 0 && position > 0 && position % _groupingSize == 0) {
+                    to.append(_groupingSeparator);
+                }
+            }
+
+            int shown = Math.max(fraction, _minFraction);
+            if (shown > 0) {
+                to.append(_decimalSeparator);
+                for (int position = fraction - 1; position >= 0; position--) {
+                    to.append((char) (_zero + (int) -(rest / POWERS[position] % 10)));
+                }
+                for (int i = fraction; i < shown; i++) {
+                    to.append(_zero);
+                }
+            }
+        }
+    }
+
     public TimeZone getTimezoneByOffset(int offset, Locale country) {
 
         String countryCode = country.getCountry();
@@ -17,6 +17,7 @@ package com.vsetec.utilities;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -24,10 +25,35 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashMap;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
@@ -35,61 +61,336 @@ import java.util.HashSet;
  */
 public class ParallelStream extends InputStream {
 
-    private static final HashMap<InputStream, Provider> _providers = new HashMap<>();
-    private static final int INITIALCHUNKSIZE = 50;
+    private static final ConcurrentHashMap<SourceKey, ProviderReference> _providers = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Provider> _abandonedProviders = new ReferenceQueue<>();
+    private static final int DEFAULTRINGSIZE = 16;
+    private static final long DEFAULTMEMORYBUDGET = 64 * 1024 * 1024;
+    private static final int MAPPEDCHUNKSIZE = 256 * 1024;
+    private static final long MAPPINGSIZE = 64 * 1024 * 1024;
+    private static final Chunk EMPTYCHUNK = new Chunk(ByteBuffer.wrap(new byte[0]), null);
+    private static final ByteBuffer EMPTY = EMPTYCHUNK._buffer;
+    private static final ChunkSizingPolicy DEFAULTCHUNKSIZING = new AdaptiveChunkSizing();
+    private static final AtomicInteger TEETHREADS = new AtomicInteger();
+    private static final Executor THREADPERSINK = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            Thread thread = new Thread(command, "ParallelStream tee " + TEETHREADS.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    };
+
+    private static final AtomicLongFieldUpdater<ParallelStream> SEQUENCE = AtomicLongFieldUpdater.newUpdater(ParallelStream.class, "_sequence");
+    private static final long DETACHEDBYSOURCE = Long.MIN_VALUE; // the cursor of a reader taken out by the source
+    private static final Chunk DETACHED = new Chunk(EMPTY, null);
 
     private final Provider _provider;
     private boolean _isClosed = false;
-    private boolean _detachedTemporarily = false; // TODO: temp detach not tested
-    private final Deque<byte[]> _collectedWhenDetached = new ArrayDeque<>();
+    private volatile boolean _detachedTemporarily = false;
+    private volatile boolean _detachedBySource = false;
+    private volatile boolean _evicted = false;
+    private volatile long _sequence = -1; // the last chunk taken from the provider
+    private volatile long _logPosition = 0; // the next chunk to take from the log of the detached readers
+    private volatile long _logEnd = 0;
+    private Chunk _held = EMPTYCHUNK;
+    private ByteBuffer _chunk = EMPTY; // shared with the other readers, never moved
+    private byte[] _array = EMPTY.array(); // the array of a heap chunk
+    private ByteBuffer _view = null; // our own view of a direct chunk
+    private byte[] _scratch = null; // to write the direct chunks to a stream
+    private int _start = 0; // where the chunk starts in the array or in the view
+    private int _length = 0;
     private int _curPos = 0;
-    private byte[] _buffer = new byte[0];
 
     public ParallelStream(InputStream parentStream) {
-        synchronized (_providers) {
-            if (parentStream instanceof ParallelStream) {
-                _provider = ((ParallelStream) parentStream)._provider;
-            } else {
-                Provider provider = _providers.get(parentStream);
-                if (provider != null) {
-                    _provider = provider;
-                } else {
-                    _provider = new Provider(parentStream);
-                    _providers.put(parentStream, _provider);
+        this(parentStream, DEFAULTRINGSIZE);
+    }
+
+    /**
+     * Creates a reader of the source stream. The first reader of a source
+     * creates the ring of chunks shared by all of its readers; the faster
+     * readers may run ahead of the slowest one by up to the ring size chunks
+     * before the source stops being read.
+     *
+     * @param parentStream the source stream or another ParallelStream of it
+     * @param ringSize the number of chunks in the ring, rounded up to a power
+     * of two. Ignored if the source already has readers
+     */
+    public ParallelStream(InputStream parentStream, int ringSize) {
+        this(parentStream, ringSize, false);
+    }
+
+    private ParallelStream(InputStream parentStream, int ringSize, boolean replay) {
+        Provider provider = null;
+        if (parentStream instanceof ParallelStream) {
+            provider = ((ParallelStream) parentStream)._provider;
+            if (!provider._attach(this, replay)) {
+                // all of its readers have been closed meanwhile
+                parentStream = provider._inputStream;
+                provider = null;
+            }
+        }
+        if (provider == null) {
+            provider = _register(parentStream, null, ringSize, this, replay);
+        }
+        _provider = provider;
+    }
+
+    private ParallelStream(FileChannel channel, int ringSize) {
+        _provider = _register(channel, channel, ringSize, this, false);
+    }
+
+    /**
+     * Creates a reader of the source stream that starts from the oldest chunk
+     * still kept in the replay window of the source rather than from where
+     * the other readers are now.
+     *
+     * @param parentStream the source stream or another ParallelStream of it
+     * @return the new reader
+     * @see #setReplayWindow(long)
+     */
+    public static ParallelStream replay(InputStream parentStream) {
+        return new ParallelStream(parentStream, DEFAULTRINGSIZE, true);
+    }
+
+    /**
+     * Finds the provider of the source in the registry, or creates one, and
+     * attaches the reader to it. The sources of different fan-outs don't
+     * wait for each other here, and a provider whose readers have all been
+     * dropped without closing is collected and then removed from the registry.
+     */
+    private static Provider _register(Object source, FileChannel channel, int ringSize, ParallelStream par, boolean replay) {
+        ProviderReference abandoned;
+        while ((abandoned = (ProviderReference) _abandonedProviders.poll()) != null) {
+            _providers.remove(abandoned._key, abandoned);
+        }
+
+        SourceKey key = new SourceKey(source);
+        Provider[] created = new Provider[1];
+        while (true) {
+            created[0] = null;
+            ProviderReference reference = _providers.compute(key, (k, existing) -> {
+                if (existing != null && existing.get() != null) {
+                    return existing;
                 }
+                InputStream inputStream = channel == null ? (InputStream) source : Channels.newInputStream(channel);
+                created[0] = new Provider(inputStream, channel, ringSize);
+                return new ProviderReference(k, created[0]);
+            });
+            // a new provider is only weakly referenced until it has a reader
+            Provider provider = created[0] != null ? created[0] : reference.get();
+            if (provider != null && provider._attach(par, replay)) {
+                return provider;
             }
+            // closed by its last reader or collected just now
+            _providers.remove(key, reference);
         }
-        _provider._attach(this);
+    }
+
+    /**
+     * Creates a reader of a file channel. The chunks are read-only slices of
+     * the memory mapped file, so nothing is copied until a reader copies the
+     * bytes out, and {@link #transferTo(WritableByteChannel)} writes the
+     * mapped chunks to the target as they are. The channel is read from its
+     * start and is closed when its last reader is closed.
+     *
+     * @param channel the file to read. More readers are created by calling
+     * this again with the same channel or from the returned stream
+     * @return the new reader
+     */
+    public static ParallelStream open(FileChannel channel) {
+        return new ParallelStream(channel, DEFAULTRINGSIZE);
+    }
+
+    /**
+     * Opens the file and creates the first reader of it, as
+     * {@link #open(FileChannel)} does. More readers are created from the
+     * returned stream.
+     *
+     * @param file the file to read
+     * @return the new reader
+     * @throws IOException if the file can't be opened
+     */
+    public static ParallelStream open(Path file) throws IOException {
+        return open(FileChannel.open(file, StandardOpenOption.READ));
     }
 
     @Override
     public int read() throws IOException {
-        if (_curPos < _buffer.length) {
-            int ret = Byte.toUnsignedInt(_buffer[_curPos]);
-            _curPos++;
-            return ret;
+        if (_curPos >= _length && !_nextChunk()) {
+            return -1;
+        }
+
+        int ret;
+        if (_array != null) {
+            ret = Byte.toUnsignedInt(_array[_start + _curPos]);
+        } else {
+            ret = Byte.toUnsignedInt(_chunk.get(_start + _curPos));
+        }
+        _curPos++;
+        return ret;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < len) {
+            int remaining = _length - _curPos;
+            if (remaining <= 0) {
+                // don't block in the provider if we already have something to return
+                if (count > 0 && _backlogSize() == 0) {
+                    break;
+                }
+                if (!_nextChunk()) {
+                    break;
+                }
+                remaining = _length;
+            }
+            int portion = Math.min(remaining, len - count);
+            if (_array != null) {
+                System.arraycopy(_array, _start + _curPos, b, off + count, portion);
+            } else {
+                ((Buffer) _view).position(_start + _curPos);
+                _view.get(b, off + count, portion);
+            }
+            _curPos += portion;
+            count += portion;
+        }
+
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            int remaining = _length - _curPos;
+            if (remaining <= 0) {
+                if (!_nextChunk()) {
+                    break;
+                }
+                remaining = _length;
+            }
+            int portion = (int) Math.min(remaining, n - skipped);
+            _curPos += portion;
+            skipped += portion;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without waiting for the
+     * other readers of the source, that is the rest of the current chunk or,
+     * if it is exhausted, the next chunk collected while detached.
+     *
+     * @return the number of bytes available without blocking
+     */
+    @Override
+    public int available() {
+        int remaining = _length - _curPos;
+        if (remaining > 0) {
+            return remaining;
+        }
+        return _backlogSize();
+    }
+
+    /**
+     * Writes the rest of this stream to the channel chunk by chunk, without
+     * copying the chunks to an intermediate array. The chunks of a file opened
+     * with {@link #open(FileChannel)} go to the channel straight from the
+     * mapped memory.
+     *
+     * @param target a blocking channel to write to
+     * @return the number of bytes written
+     * @throws IOException if reading the source or writing the target fails
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long count = 0;
+        long written;
+        while ((written = _pumpChunk(target)) >= 0) {
+            count += written;
+        }
+        return count;
+    }
+
+    private int _backlogSize() {
+        return _logPosition < _logEnd ? _provider._log._peekSize(this) : 0;
+    }
+
+    private boolean _nextChunk() throws IOException {
+        if (_isClosed) {
+            throw new IOException("Stream closed");
         }
+        Chunk chunk = _takeChunk(null);
+
+        _held._release();
+        _held = chunk;
+        _setChunk(_held._buffer);
+        return _length > 0;
+    }
 
-        _buffer = _collectedWhenDetached.poll();
-        if (_buffer == null) {
+    /**
+     * @return the next chunk kept in the log or loaded by the provider,
+     * {@link #EMPTYCHUNK} at the end, or null if the wake up is going to be
+     * run when the chunk may be there
+     */
+    private Chunk _takeChunk(Runnable wakeUp) throws IOException {
+        while (true) {
+            if (_evicted) {
+                throw new IOException("The reader has been evicted from the source for falling behind");
+            }
+            Chunk chunk = _logPosition < _logEnd ? _provider._log._poll(this) : null;
+            if (chunk != null) {
+                return chunk;
+            }
             if (_detachedTemporarily) {
+                if (_detachedBySource) {
+                    // it has read what was kept for it, it can hold the others back again
+                    _provider._attach(this, false);
+                    continue;
+                }
+                if (_provider._isExhausted(this)) {
+                    return EMPTYCHUNK;
+                }
                 throw new IllegalStateException("Reading from a detached ParallelStream");
             }
-            _buffer = _provider._loadNext();
+            chunk = _provider._loadNext(this, wakeUp);
+            if (chunk != DETACHED) {
+                return chunk;
+            }
         }
+    }
 
-        if (_buffer == null) {
-            return -1;
+    private void _setChunk(ByteBuffer chunk) {
+        _curPos = 0;
+        _chunk = chunk;
+        _length = chunk.remaining();
+        if (chunk.hasArray()) {
+            _array = chunk.array();
+            _start = chunk.arrayOffset() + chunk.position();
+            _view = null;
+        } else {
+            _array = null;
+            _start = chunk.position();
+            _view = chunk.duplicate();
         }
-        _curPos = 1;
-        return Byte.toUnsignedInt(_buffer[0]);
     }
 
+
     @Override
     public void close() throws IOException {
         if (!_isClosed) {
             _isClosed = true;
             _provider._detach(this, false);
+            _held._release();
+            _held = EMPTYCHUNK;
+            _setChunk(EMPTY);
         }
     }
 
@@ -98,6 +399,7 @@ public class ParallelStream extends InputStream {
     }
 
     public void detachTemporarily() {
+        _detachedBySource = false;
         try {
             _provider._detach(this, true);
         } catch (IOException e) {
@@ -106,121 +408,1785 @@ public class ParallelStream extends InputStream {
     }
 
     public void reattach() {
-        _provider._attach(this);
+        _provider._attach(this, false);
     }
 
-    private static class Provider {
+    /**
+     * Sets how many bytes may be kept in memory for the temporarily detached
+     * readers of the source. Every chunk is kept once for all of them; the
+     * chunks collected above the budget are written to a temporary file and
+     * read back from it, until all the readers have moved past them.
+     *
+     * @param bytes the memory budget of the detached readers, 64 megabytes by
+     * default
+     */
+    public void setDetachedMemoryBudget(long bytes) {
+        _provider._memoryBudget = bytes;
+    }
 
-        private int _chunkSize = INITIALCHUNKSIZE;
-        private final InputStream _inputStream;
-        private final HashSet<ParallelStream> _readers = new HashSet<>(4);
-        private final HashSet<ParallelStream> _temporarilyDetachedReaders = new HashSet<>(3);
-        private byte[] _bufferTmp = new byte[_chunkSize];
-        private byte[][] _bufferHolder = new byte[1][0]; //poor man's mutable byte
-        private int _howManyHaveAsked = 0;
+    /**
+     * What the source does with a reader that keeps the others waiting, that
+     * is, that is a whole ring behind when the faster readers need the next
+     * chunk. The readers that wait in {@code read} for longer than the max
+     * wait apply the policy to all such readers.
+     */
+    public enum SlowReaderPolicy {
+        /**
+         * The others wait for it as long as it takes.
+         */
+        WAIT,
+        /**
+         * It is detached temporarily, the chunks read meanwhile kept for it
+         * like for the other detached readers, and is attached back as soon
+         * as it has read them.
+         */
+        DETACH,
+        /**
+         * It is removed from the source, and its next read throws an
+         * IOException.
+         */
+        EVICT,
+        /**
+         * The source fails, and all of its readers throw an IOException when
+         * they come for the next chunk.
+         */
+        FAIL
+    }
 
-        private Provider(InputStream inputStream) {
-            _inputStream = inputStream;
+    /**
+     * Sets what the source does with the readers that keep the others
+     * waiting.
+     *
+     * @param policy what to do with them, {@link SlowReaderPolicy#WAIT} by
+     * default
+     * @param maxWaitMillis how long the faster readers wait before doing it;
+     * 0 doesn't let them wait at all
+     */
+    public void setSlowReaderPolicy(SlowReaderPolicy policy, long maxWaitMillis) {
+        if (policy == null) {
+            throw new IllegalArgumentException("The slow reader policy can't be null");
         }
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("The max wait can't be negative, requested " + maxWaitMillis);
+        }
+        _provider._maxWaitMillis = maxWaitMillis;
+        _provider._slowReaderPolicy = policy;
+        _provider._signal();
+    }
 
-        private synchronized byte[] _loadNext() throws IOException {
+    /**
+     * Sets how much of the source is kept for the readers that join late and
+     * want to read it from the start, see {@link #replay(InputStream)}. The
+     * window is counted in whole chunks from the last one read, and shares
+     * the memory budget and the spill file with the detached readers. Only
+     * the chunks read from the source after the window is set are kept.
+     *
+     * @param bytes at least how many of the last bytes of the source to keep,
+     * 0 by default; {@link Long#MAX_VALUE} keeps everything
+     */
+    public void setReplayWindow(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("The replay window can't be negative, requested " + bytes);
+        }
+        _provider._log._setWindow(bytes);
+    }
 
-            if (_bufferHolder[0] == null) {
-                return null;
-            }
+    /**
+     * Sets where the chunks collected for the detached readers of the source
+     * are spilled when they don't fit in memory.
+     *
+     * @param directory the directory for the temporary files, or null for the
+     * default temporary directory
+     */
+    public void setSpillDirectory(File directory) {
+        _provider._spillDirectory = directory;
+    }
 
-            _howManyHaveAsked++;
+    /**
+     * Sets how the size of the chunks read from the source is chosen, an
+     * {@link AdaptiveChunkSizing} by default. The chunks of a file opened
+     * with {@link #open(FileChannel)} have a fixed size.
+     *
+     * @param policy the chunk sizing policy of the source
+     */
+    public void setChunkSizingPolicy(ChunkSizingPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("The chunk sizing policy can't be null");
+        }
+        int initialSize = policy.getInitialSize();
+        if (initialSize <= 0) {
+            throw new IllegalArgumentException("The initial chunk size should be positive, got " + initialSize);
+        }
+        _provider._loadLock.lock();
+        try {
+            _provider._chunkSizing = policy;
+            _provider._chunkSize = initialSize;
+        } finally {
+            _provider._loadLock.unlock();
+        }
+    }
 
-            long waitTime = System.currentTimeMillis();
-            byte[] oldBuffer = _bufferHolder[0];
-            while (_howManyHaveAsked < _readers.size()) {
-                try {
-                    this.wait(1000);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-                if (oldBuffer != _bufferHolder[0]) { // switched to next
-                    return _bufferHolder[0];
-                }
-            }
+    /**
+     * @return how many chunk buffers the source has allocated, as there was
+     * no released one of the size in its pool
+     */
+    public long getAllocatedChunks() {
+        return _provider._pool._allocated();
+    }
 
-            _howManyHaveAsked = 0;
-            //_lock = new Object();
+    /**
+     * @return how many times the source has reused a released chunk buffer
+     */
+    public long getReusedChunks() {
+        return _provider._pool._reused();
+    }
 
-            int size = _inputStream.read(_bufferTmp);
-            if (size == -1) {
+    /**
+     * @return the bytes kept in memory for the detached readers of the source
+     * and its replay window
+     */
+    public long getRetainedBytes() {
+        return _provider._log._retainedBytes();
+    }
 
-                _bufferHolder[0] = null;
+    /**
+     * @return the bytes written to disk for the detached readers of the source
+     * and its replay window, and not released yet
+     */
+    public long getSpilledBytes() {
+        return _provider._log._spilledBytes();
+    }
 
-            } else {
+    /**
+     * The figures of a source and its readers, for monitoring. The figures
+     * are collected as the source is read, and the lags are counted when
+     * asked for.
+     */
+    public interface SourceMetricsMXBean {
+
+        /**
+         * @return the bytes read from the source so far
+         */
+        long getBytesRead();
+
+        /**
+         * @return the chunks read from the source so far
+         */
+        long getChunksRead();
+
+        /**
+         * @return the size of the next chunk to read from the source
+         */
+        int getChunkSize();
+
+        /**
+         * @return the total time the readers have spent waiting for the next
+         * chunk, either for a reader that was loading it or for the slowest
+         * reader to free a place in the ring
+         */
+        long getBlockedMillis();
+
+        int getReaderCount();
+
+        int getDetachedReaderCount();
+
+        /**
+         * @return how many chunks every reader, attached or detached, has yet
+         * to take
+         */
+        long[] getReaderLags();
+
+        /**
+         * @return how many bytes of the chunks read from the source every
+         * reader has yet to take
+         */
+        long[] getReaderLagBytes();
+
+        /**
+         * @return the most chunks a reader has yet to take
+         */
+        long getMaxLag();
+
+        /**
+         * @return the bytes kept in memory for the detached readers and the
+         * replay window
+         */
+        long getRetainedBytes();
+
+        /**
+         * @return the bytes spilled to disk for the detached readers and the
+         * replay window
+         */
+        long getSpilledBytes();
+
+        long getAllocatedChunks();
+
+        long getReusedChunks();
+    }
 
-                _bufferHolder[0] = new byte[size];
-                System.arraycopy(_bufferTmp, 0, _bufferHolder[0], 0, size);
+    /**
+     * @return the figures of the source of this reader
+     */
+    public SourceMetricsMXBean getMetrics() {
+        return _provider._metrics;
+    }
 
-                // compute chunk size
-                waitTime = System.currentTimeMillis() - waitTime;
-                boolean resize = false;
-                if (waitTime > 100 && _chunkSize > 50) {
-                    _chunkSize = (int) (_chunkSize * 0.7);
-                    resize = true;
-                } else if (size == _chunkSize) {
-                    _chunkSize = (int) (_chunkSize * 1.5);
-                    resize = true;
-                }
-                if (resize) {
-                    _bufferTmp = new byte[_chunkSize];
-                }
-            }
+    /**
+     * Registers the figures of the source of this reader in the platform
+     * MBean server as
+     * {@code com.vsetec.utilities:type=ParallelStream,name=<name>}. They are
+     * unregistered when the last reader of the source is closed.
+     *
+     * @param name the name of the source
+     * @return the name it is registered with
+     * @throws JMException if the name is malformed or already registered
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.vsetec.utilities:type=ParallelStream,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(_provider._metrics, objectName);
+        _provider._objectNames.add(objectName);
+        return objectName;
+    }
+
+    /**
+     * @return how many chunks read from the source this reader has yet to
+     * take, including the ones kept for it while it was detached
+     */
+    public long getLag() {
+        return _provider._lag(this);
+    }
+
+    /**
+     * @return how many bytes of the chunks read from the source this reader
+     * has yet to take, not counting the rest of the chunk it is reading
+     */
+    public long getLagBytes() {
+        return _provider._lagBytes(this);
+    }
+
+    /**
+     * What a {@link #tee} does with a sink that can't keep up with the others,
+     * that is, whose reader is a whole ring behind the source when it comes to
+     * read the next chunk.
+     */
+    public enum SlowSinkPolicy {
+        /**
+         * The others wait for the sink
+         */
+        BLOCK,
+        /**
+         * The sink is dropped and gets an IOException in the result
+         */
+        DROP,
+        /**
+         * The sink is detached temporarily and its chunks are buffered until
+         * it catches up, see {@link #detachTemporarily()}
+         */
+        DETACH
+    }
+
+    /**
+     * The outcome of a {@link #tee}
+     */
+    public static class TeeResult {
+
+        private final long[] _bytes;
+        private final Throwable[] _failures;
+        private long _elapsed;
+
+        private TeeResult(int sinks) {
+            _bytes = new long[sinks];
+            _failures = new Throwable[sinks];
+        }
+
+        public int getSinkCount() {
+            return _bytes.length;
+        }
+
+        /**
+         * @param sink the index of the sink as it was passed to the tee
+         * @return the bytes written to the sink
+         */
+        public long getBytes(int sink) {
+            return _bytes[sink];
+        }
+
+        /**
+         * @param sink the index of the sink as it was passed to the tee
+         * @return why the sink was given up, or null if it has got everything
+         */
+        public Throwable getFailure(int sink) {
+            return _failures[sink];
+        }
 
-            if (_bufferHolder[0] != null) {
-                for (ParallelStream par : _temporarilyDetachedReaders) {
-                    par._collectedWhenDetached.add(_bufferHolder[0]);
+        public boolean isSuccessful() {
+            for (Throwable failure : _failures) {
+                if (failure != null) {
+                    return false;
                 }
             }
+            return true;
+        }
+
+        public long getElapsedMillis() {
+            return _elapsed;
+        }
+    }
+
+    /**
+     * Copies the source to all the sinks, each sink in its own new daemon
+     * thread, the slow sinks holding back the others. Prefer giving an
+     * executor, so that the copying doesn't need a thread per sink.
+     *
+     * @param source the stream to copy
+     * @param sinks where to copy it
+     * @return the future result, completed when all the sinks are done
+     * @see #tee(Executor, InputStream, OutputStream...)
+     */
+    public static CompletableFuture<TeeResult> tee(InputStream source, OutputStream... sinks) {
+        return tee(THREADPERSINK, SlowSinkPolicy.BLOCK, source, sinks);
+    }
+
+    /**
+     * Copies the source to all the sinks in the tasks of the executor, the
+     * slow sinks holding back the others.
+     *
+     * @param executor runs a task per sink for the whole copying
+     * @param source the stream to copy
+     * @param sinks where to copy it
+     * @return the future result, completed when all the sinks are done
+     * @see #tee(Executor, SlowSinkPolicy, InputStream, OutputStream...)
+     */
+    public static CompletableFuture<TeeResult> tee(Executor executor, InputStream source, OutputStream... sinks) {
+        return tee(executor, SlowSinkPolicy.BLOCK, source, sinks);
+    }
 
-            this.notifyAll();
-            return _bufferHolder[0];
+    /**
+     * Copies the source to all the sinks. Every sink gets its own reader of
+     * the source which is pumped in a task of the executor, writing whole
+     * chunks at a time; a virtual thread per task executor suits it well
+     * where available. When a sink fails, its reader is closed so that the
+     * others don't wait for it, and the failure goes to the result. No sink
+     * is ever closed, the failed ones included: the sinks that get everything
+     * are flushed, and all should not modify the arrays passed to them.
+     *
+     * @param executor runs a task per sink for the whole copying
+     * @param policy what to do with the sinks that fall behind
+     * @param source the stream to copy
+     * @param sinks where to copy it
+     * @return the future result, completed when all the sinks are done
+     */
+    public static CompletableFuture<TeeResult> tee(Executor executor, SlowSinkPolicy policy, InputStream source, OutputStream... sinks) {
+        ParallelStream[] readers = new ParallelStream[sinks.length];
+        for (int i = 0; i < sinks.length; i++) {
+            readers[i] = new ParallelStream(source);
+        }
+        return _tee(executor, policy, readers, sinks);
+    }
 
+    /**
+     * Copies the file to all the channels, the same way
+     * {@link #tee(Executor, SlowSinkPolicy, InputStream, OutputStream...)}
+     * does, writing the mapped chunks of the file as they are.
+     *
+     * @param executor runs a task per sink for the whole copying
+     * @param policy what to do with the sinks that fall behind
+     * @param source the file to copy
+     * @param sinks where to copy it
+     * @return the future result, completed when all the sinks are done
+     */
+    public static CompletableFuture<TeeResult> tee(Executor executor, SlowSinkPolicy policy, FileChannel source, WritableByteChannel... sinks) {
+        ParallelStream[] readers = new ParallelStream[sinks.length];
+        for (int i = 0; i < sinks.length; i++) {
+            readers[i] = open(source);
         }
+        return _tee(executor, policy, readers, sinks);
+    }
 
-        private void _detach(ParallelStream par, boolean temporarily) throws IOException {
-            synchronized (this) {
-                _readers.remove(par);
+    private static CompletableFuture<TeeResult> _tee(Executor executor, SlowSinkPolicy policy, ParallelStream[] readers, Object[] sinks) {
+        long start = System.nanoTime();
+        TeeResult result = new TeeResult(sinks.length);
+        CompletableFuture<TeeResult> ret = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(sinks.length);
+        if (sinks.length == 0) {
+            ret.complete(result);
+            return ret;
+        }
 
-                if (temporarily) {
-                    if (!par._detachedTemporarily) {
-                        par._detachedTemporarily = true;
-                        _temporarilyDetachedReaders.add(par);
+        for (int i = 0; i < sinks.length; i++) {
+            final int sink = i;
+            Runnable pump = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readers[sink]._pump(sinks[sink], policy, result, sink);
+                    } catch (Throwable e) {
+                        result._failures[sink] = e;
                     }
-                } else {
-                    if (par._detachedTemporarily) {
-                        par._detachedTemporarily = false;
-                        _temporarilyDetachedReaders.remove(par);
+                    try {
+                        readers[sink].close();
+                    } catch (IOException e) {
+                        if (result._failures[sink] == null) {
+                            result._failures[sink] = e;
+                        }
                     }
-                }
-
-                if (!temporarily && _readers.isEmpty() && _temporarilyDetachedReaders.isEmpty()) {
-                    synchronized (_providers) {
-                        _inputStream.close();
-                        _providers.remove(_inputStream);
+                    if (pending.decrementAndGet() == 0) {
+                        result._elapsed = (System.nanoTime() - start) / 1000000;
+                        ret.complete(result);
                     }
                 }
-
-                this.notifyAll();
+            };
+            try {
+                executor.execute(pump);
+            } catch (RejectedExecutionException e) {
+                result._failures[sink] = e;
+                try {
+                    readers[sink].close();
+                } catch (IOException ee) {
+                    // it has failed already
+                }
+                if (pending.decrementAndGet() == 0) {
+                    result._elapsed = (System.nanoTime() - start) / 1000000;
+                    ret.complete(result);
+                }
             }
         }
+        return ret;
+    }
 
-        private void _attach(ParallelStream par) {
-            synchronized (this) {
-                _readers.add(par);
-                if (par._detachedTemporarily) {
-                    _temporarilyDetachedReaders.remove(par);
-                    par._detachedTemporarily = false;
+    private void _pump(Object sink, SlowSinkPolicy policy, TeeResult result, int index) throws IOException {
+        boolean detached = false;
+        while (true) {
+            if (detached && available() == 0) { // caught up
+                reattach();
+                detached = false;
+            }
+
+            long written;
+            if (sink instanceof OutputStream) {
+                written = _pumpChunk((OutputStream) sink);
+            } else {
+                written = _pumpChunk((WritableByteChannel) sink);
+            }
+            if (written < 0) {
+                break;
+            }
+            result._bytes[index] += written;
+
+            if (!detached && policy != SlowSinkPolicy.BLOCK && _provider._published - _sequence >= _provider._ring.length) {
+                if (policy == SlowSinkPolicy.DROP) {
+                    throw new IOException("The sink has fallen behind by the whole ring and was dropped");
                 }
-                this.notifyAll();
+                detachTemporarily();
+                detached = true;
+            }
+        }
+        if (sink instanceof OutputStream) {
+            ((OutputStream) sink).flush();
+        }
+    }
+
+    private long _pumpChunk(OutputStream target) throws IOException {
+        if (_curPos >= _length && !_nextChunk()) {
+            return -1;
+        }
+        int portion = _length - _curPos;
+        if (_array != null) {
+            target.write(_array, _start + _curPos, portion);
+        } else {
+            if (_scratch == null) {
+                _scratch = new byte[65536];
+            }
+            ((Buffer) _view).position(_start + _curPos);
+            for (int left = portion; left > 0; left -= _scratch.length) {
+                int len = Math.min(left, _scratch.length);
+                _view.get(_scratch, 0, len);
+                target.write(_scratch, 0, len);
             }
         }
+        _curPos = _length;
+        return portion;
+    }
+
+    private long _pumpChunk(WritableByteChannel target) throws IOException {
+        if (_curPos >= _length && !_nextChunk()) {
+            return -1;
+        }
+        ByteBuffer portion = _chunk.asReadOnlyBuffer();
+        ((Buffer) portion).position(_chunk.position() + _curPos);
+        while (portion.hasRemaining()) {
+            target.write(portion);
+        }
+        int ret = _length - _curPos;
+        _curPos = _length;
+        return ret;
+    }
+
+    /**
+     * A source of items for the subscribers that ask for them. It has the
+     * shape of the Reactive Streams and java.util.concurrent.Flow publisher,
+     * so that either can be adapted to it with a method reference.
+     *
+     * @param <T> the items
+     */
+    public interface Publisher<T> {
 
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * The receiver of the items of a {@link Publisher}. The methods are called
+     * one at a time, after {@link #onSubscribe(Subscription)}.
+     *
+     * @param <T> the items
+     */
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * The demand of a {@link Subscriber}.
+     */
+    public interface Subscription {
+
+        /**
+         * @param n how many more items the subscriber wants, or
+         * {@link Long#MAX_VALUE} for all of them
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * Publishes the chunks of the source stream to the subscribers. Every
+     * subscriber gets its own reader of the source, attached when it
+     * subscribes, and the subscribers share the chunks the same way the
+     * readers do: the source isn't read further than the ring size chunks
+     * ahead of the subscriber that has asked for the least. Nobody waits in
+     * a thread though; the subscriber that can't be given a chunk yet is
+     * called back by the reader that moves the source on, and its delivery
+     * continues in a task of the executor, so a few threads can serve many
+     * subscribers.
+     * <p>
+     * The buffers given to {@code onNext} are read-only views of the shared
+     * chunks, valid until the next call to the subscriber. Copy them to keep
+     * them longer.
+     *
+     * @param source the stream to publish, or a reader of it
+     * @param executor runs the deliveries, and the reads of the source
+     * @return the publisher; the source is closed when its last reader or
+     * subscriber is done
+     */
+    public static Publisher<ByteBuffer> publish(InputStream source, Executor executor) {
+        return new Publisher<ByteBuffer>() {
+            @Override
+            public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+                ChunkSubscription subscription = new ChunkSubscription(new ParallelStream(source), subscriber, executor);
+                subscriber.onSubscribe(subscription);
+            }
+        };
+    }
+
+    /**
+     * The reader of a subscriber. Its deliveries are run by one task at a
+     * time, rescheduled by the requests, the cancel and the wake ups of the
+     * provider.
+     */
+    private static class ChunkSubscription implements Subscription, Runnable {
+
+        private final ParallelStream _reader;
+        private final Subscriber<? super ByteBuffer> _subscriber;
+        private final Executor _executor;
+        private final AtomicLong _demand = new AtomicLong();
+        private final AtomicInteger _scheduled = new AtomicInteger();
+        private final Runnable _wakeUp = new Runnable() {
+            @Override
+            public void run() {
+                _schedule();
+            }
+        };
+        private volatile boolean _cancelled = false;
+        private volatile IllegalArgumentException _badRequest = null;
+        private boolean _done = false;
+
+        private ChunkSubscription(ParallelStream reader, Subscriber<? super ByteBuffer> subscriber, Executor executor) {
+            _reader = reader;
+            _subscriber = subscriber;
+            _executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                _badRequest = new IllegalArgumentException("Requested " + n + " chunks, should be positive");
+            } else {
+                long demand;
+                do {
+                    demand = _demand.get();
+                } while (!_demand.compareAndSet(demand, demand + n < 0 ? Long.MAX_VALUE : demand + n));
+            }
+            _schedule();
+        }
+
+        @Override
+        public void cancel() {
+            _cancelled = true;
+            _schedule();
+        }
+
+        private void _schedule() {
+            if (_scheduled.getAndIncrement() == 0) {
+                try {
+                    _executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // nothing is delivering now, and nothing will
+                    _finish(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int scheduled = 1;
+            do {
+                _deliver();
+                scheduled = _scheduled.addAndGet(-scheduled);
+            } while (scheduled != 0);
+        }
+
+        private void _deliver() {
+            while (!_done) {
+                if (_cancelled) {
+                    _finish(null);
+                    return;
+                }
+                if (_badRequest != null) {
+                    _finish(_badRequest);
+                    return;
+                }
+                if (_demand.get() == 0) {
+                    return;
+                }
+
+                Chunk chunk;
+                try {
+                    chunk = _reader._takeChunk(_wakeUp);
+                } catch (Throwable e) {
+                    _finish(e);
+                    return;
+                }
+                if (chunk == null) {
+                    return; // to be woken up
+                }
+                if (chunk == EMPTYCHUNK) {
+                    _finish(null);
+                    return;
+                }
+
+                _reader._held._release();
+                _reader._held = chunk;
+                if (_demand.get() != Long.MAX_VALUE) {
+                    _demand.decrementAndGet();
+                }
+                try {
+                    _subscriber.onNext(chunk._buffer.asReadOnlyBuffer());
+                } catch (Throwable e) {
+                    _cancelled = true; // the subscriber has broken, it's not told
+                }
+            }
+        }
+
+        private void _finish(Throwable failure) {
+            _done = true;
+            try {
+                _reader.close();
+            } catch (IOException e) {
+                if (failure == null && !_cancelled) {
+                    failure = e;
+                }
+            }
+            if (_cancelled) {
+                return;
+            }
+            _cancelled = true;
+            if (failure == null) {
+                _subscriber.onComplete();
+            } else {
+                _subscriber.onError(failure);
+            }
+        }
+    }
+
+    /**
+     * Decides how big the chunks read from a source stream are. It is called
+     * by one reader at a time, under the lock of the source.
+     */
+    public interface ChunkSizingPolicy {
+
+        int getMinSize();
+
+        int getMaxSize();
+
+        int getInitialSize();
+
+        /**
+         * Called after every chunk read from the source. The returned size is
+         * kept within the minimum and the maximum.
+         *
+         * @param size the size of the chunk asked from the source
+         * @param read the bytes the source has actually given
+         * @param readNanos how long the source took to give them
+         * @param stallNanos how long the faster readers had waited for the
+         * slowest one before this chunk could be loaded
+         * @param lag how many chunks the slowest reader is behind, up to the
+         * ring size
+         * @param ringSize the number of chunks in the ring
+         * @return the size of the next chunk
+         */
+        int nextSize(int size, int read, long readNanos, long stallNanos, int lag, int ringSize);
+    }
+
+    /**
+     * Grows the chunks while the source fills them quickly and the readers
+     * keep up, as bigger chunks cost less per byte, and shrinks them when a
+     * chunk takes long to read or the readers wait long for the slowest, as
+     * then smaller chunks give the readers their bytes sooner and keep less
+     * in the ring. A source that gives less than asked keeps its chunk size.
+     */
+    public static class AdaptiveChunkSizing implements ChunkSizingPolicy {
+
+        private static final long FASTREAD = 1000000; // a millisecond
+        private static final long SLOWREAD = 20000000;
+        private static final long LONGSTALL = 100000000;
+
+        private final int _minSize;
+        private final int _maxSize;
+
+        public AdaptiveChunkSizing() {
+            this(512, 1024 * 1024);
+        }
+
+        public AdaptiveChunkSizing(int minSize, int maxSize) {
+            if (minSize < 1 || maxSize < minSize) {
+                throw new IllegalArgumentException("Wrong chunk size bounds: " + minSize + " - " + maxSize);
+            }
+            _minSize = minSize;
+            _maxSize = maxSize;
+        }
+
+        @Override
+        public int getMinSize() {
+            return _minSize;
+        }
+
+        @Override
+        public int getMaxSize() {
+            return _maxSize;
+        }
+
+        @Override
+        public int getInitialSize() {
+            return Math.max(_minSize, Math.min(_maxSize, 8192));
+        }
+
+        @Override
+        public int nextSize(int size, int read, long readNanos, long stallNanos, int lag, int ringSize) {
+            if (stallNanos > LONGSTALL || readNanos > SLOWREAD) {
+                return size / 2;
+            }
+            if (read == size && readNanos < FASTREAD && lag <= ringSize / 2) {
+                return size > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : size * 2;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Serves the chunks of the source to its readers through a ring. Every
+     * reader has its own cursor, the sequence number of the last chunk it has
+     * taken, so the readers take the already loaded chunks without any lock.
+     * The reader that needs a chunk that is not loaded yet loads it, unless it
+     * would overwrite a chunk the slowest reader hasn't taken yet; in that
+     * case it waits for the slowest one.
+     */
+    private static class Provider {
+
+        private volatile ChunkSizingPolicy _chunkSizing = DEFAULTCHUNKSIZING;
+        private volatile int _chunkSize = DEFAULTCHUNKSIZING.getInitialSize(); // written under _loadLock
+        private final InputStream _inputStream;
+        private final FileChannel _channel;
+        private final Object _key;
+        private final Chunk[] _ring;
+        private final int _mask;
+        private volatile ParallelStream[] _readers = new ParallelStream[0];
+        private final HashSet<ParallelStream> _temporarilyDetachedReaders = new HashSet<>(3); // guarded by _loadLock
+        private final ReentrantLock _loadLock = new ReentrantLock();
+        private final Object _signal = new Object();
+        private volatile int _waiting = 0;
+        private final ConcurrentLinkedQueue<Runnable> _wakeUps = new ConcurrentLinkedQueue<>();
+        private volatile boolean _loading = false;
+        private boolean _closed = false; // guarded by _loadLock
+        private volatile long _published = -1;
+        private volatile long _end = Long.MAX_VALUE;
+        private volatile IOException _failure = null;
+        private volatile long _memoryBudget = DEFAULTMEMORYBUDGET;
+        private volatile File _spillDirectory = null;
+        private final ChunkLog _log = new ChunkLog();
+        private volatile long _stalledSince = 0;
+        private volatile SlowReaderPolicy _slowReaderPolicy = SlowReaderPolicy.WAIT;
+        private volatile long _maxWaitMillis = 0;
+        private volatile long _bytesRead = 0; // written under _loadLock
+        private final LongAdder _blockedNanos = new LongAdder();
+        private final SourceMetricsMXBean _metrics = new Metrics();
+        private final List<ObjectName> _objectNames = new CopyOnWriteArrayList<>();
+        private final ChunkPool _pool;
+        private MappedByteBuffer _mapping = null;
+        private long _mapped = 0;
+
+        private Provider(InputStream inputStream, FileChannel channel, int ringSize) {
+            if (ringSize < 2) {
+                throw new IllegalArgumentException("The ring should have at least two chunks, requested " + ringSize);
+            }
+            _inputStream = inputStream;
+            _channel = channel;
+            _key = channel == null ? inputStream : channel;
+            _ring = new Chunk[Integer.highestOneBit(ringSize - 1) << 1];
+            _pool = new ChunkPool(_ring.length * 2);
+            _mask = _ring.length - 1;
+        }
+
+        /**
+         * Takes the next chunk for the reader, waiting for it if there's no
+         * wake up to register instead.
+         *
+         * @return the chunk, {@link #EMPTYCHUNK} at the end of the source, or
+         * null if the wake up is going to be run when the chunk may be there
+         */
+        private Chunk _loadNext(ParallelStream par, Runnable wakeUp) throws IOException {
+            long taken = par._sequence;
+            if (taken == DETACHEDBYSOURCE) {
+                return _detachedBySource();
+            }
+            long sequence = taken + 1;
+            Chunk ret = _chunk(sequence, wakeUp);
+            if (ret == EMPTYCHUNK && par._sequence != taken) {
+                return _detachedBySource();
+            }
+            if (ret != null && ret != EMPTYCHUNK) {
+                // taken before moving the cursor, the ring doesn't let it go before the cursor moves,
+                // unless the cursor is moved by the source that takes the reader out
+                if (!ret._tryRetain()) {
+                    return _detachedBySource();
+                }
+                if (!SEQUENCE.compareAndSet(par, taken, sequence)) {
+                    ret._release();
+                    return _detachedBySource();
+                }
+                _signal();
+            }
+            return ret;
+        }
+
+        private Chunk _detachedBySource() {
+            // let it finish taking the reader out
+            _loadLock.lock();
+            _loadLock.unlock();
+            return DETACHED;
+        }
+
+        private Chunk _chunk(long sequence, Runnable wakeUp) throws IOException {
+            while (true) {
+                if (sequence <= _published) {
+                    return _ring[(int) sequence & _mask];
+                }
+                if (sequence >= _end) {
+                    return EMPTYCHUNK;
+                }
+                if (_failure != null) {
+                    throw new IOException("The source stream has failed", _failure);
+                }
+
+                if (_canLoad() && _loadLock.tryLock()) {
+                    boolean loaded = false;
+                    try {
+                        if (_published < sequence && _end == Long.MAX_VALUE && _canLoad()) {
+                            _loading = true;
+                            _load();
+                            loaded = true;
+                        }
+                    } finally {
+                        _loading = false;
+                        _loadLock.unlock();
+                    }
+                    _signal();
+                    if (loaded) {
+                        continue;
+                    }
+                }
+
+                if (wakeUp == null) {
+                    _handleSlowReaders();
+                    _await(sequence);
+                } else if (_park(sequence, wakeUp)) {
+                    return null;
+                }
+            }
+        }
+
+        private boolean _canLoad() {
+            // the next chunk goes to the slot of the chunk that is ring size behind
+            long next = _published + 1;
+            for (ParallelStream par : _readers) {
+                if (par._sequence < next - _ring.length) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void _load() throws IOException {
+            long next = _published + 1;
+
+            Chunk chunk;
+            try {
+                chunk = _channel == null ? _readChunk() : _mapChunk();
+            } catch (IOException e) {
+                _failure = e;
+                throw e;
+            }
+
+            if (chunk == null) {
+                _end = next;
+                return;
+            }
+
+            Chunk overwritten = _ring[(int) next & _mask];
+            _ring[(int) next & _mask] = chunk;
+            if (overwritten != null) {
+                overwritten._release();
+            }
+            // the mapped chunks are in the file already, there's no point to spill them
+            _log._append(next, chunk, _channel == null ? _memoryBudget : Long.MAX_VALUE, _spillDirectory);
+            _bytesRead += chunk._buffer.remaining();
+            _published = next;
+        }
+
+        private Chunk _readChunk() throws IOException {
+            ChunkSizingPolicy policy = _chunkSizing;
+            int size = Math.max(policy.getMinSize(), Math.min(policy.getMaxSize(), _chunkSize));
+            Chunk chunk = _pool._take(size);
+
+            long readStart = System.nanoTime();
+            int read;
+            try {
+                read = _inputStream.read(chunk._buffer.array(), 0, size);
+                if (read == 0) {
+                    // a source that gives nothing without saying it's over would have
+                    // the loader spin under the lock, so wait for a byte instead
+                    int b = _inputStream.read();
+                    if (b >= 0) {
+                        chunk._buffer.array()[0] = (byte) b;
+                        read = 1;
+                    } else {
+                        read = -1;
+                    }
+                }
+            } catch (IOException e) {
+                chunk._release();
+                throw e;
+            }
+            long readNanos = System.nanoTime() - readStart;
+            if (read < 0) {
+                chunk._release();
+                return null;
+            }
+            ((Buffer) chunk._buffer).limit(read);
+
+            long stalledSince = _stalledSince;
+            _stalledSince = 0;
+            long stallNanos = stalledSince == 0 ? 0 : readStart - stalledSince;
+            long slowest = _published;
+            for (ParallelStream par : _readers) {
+                slowest = Math.min(slowest, par._sequence);
+            }
+            int lag = (int) Math.min(_ring.length, _published - slowest);
+            _chunkSize = policy.nextSize(size, read, readNanos, stallNanos, lag, _ring.length);
+
+            return chunk;
+        }
+
+        private Chunk _mapChunk() throws IOException {
+            if (_mapping == null || !_mapping.hasRemaining()) {
+                long size = Math.min(MAPPINGSIZE, _channel.size() - _mapped);
+                if (size <= 0) {
+                    return null;
+                }
+                _mapping = _channel.map(FileChannel.MapMode.READ_ONLY, _mapped, size);
+                _mapped += size;
+            }
+
+            _stalledSince = 0;
+            int size = Math.min(MAPPEDCHUNKSIZE, _mapping.remaining());
+            ByteBuffer chunk = _mapping.slice();
+            ((Buffer) chunk).limit(size);
+            ((Buffer) _mapping).position(_mapping.position() + size);
+            return new Chunk(chunk, null);
+        }
+
+        private void _await(long sequence) {
+            synchronized (_signal) {
+                _waiting++;
+                try {
+                    // the state is rechecked after announcing the wait, so a signal can't be missed
+                    if (sequence > _published && _end == Long.MAX_VALUE && _failure == null
+                            && (_loading || !_canLoad())) {
+                        if (!_loading && _stalledSince == 0) {
+                            _stalledSince = System.nanoTime();
+                        }
+                        long blockedSince = System.nanoTime();
+                        _signal.wait(_slowReaderPolicy == SlowReaderPolicy.WAIT ? 1000 : Math.max(1, Math.min(1000, _maxWaitMillis)));
+                        _blockedNanos.add(System.nanoTime() - blockedSince);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    _waiting--;
+                }
+            }
+        }
+
+        private boolean _park(long sequence, Runnable wakeUp) {
+            _wakeUps.add(wakeUp);
+            // the state is rechecked after announcing the wait, as in _await
+            if (sequence > _published && _end == Long.MAX_VALUE && _failure == null
+                    && (_loading || !_canLoad())) {
+                if (!_loading && _stalledSince == 0) {
+                    _stalledSince = System.nanoTime();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void _signal() {
+            if (_waiting > 0) {
+                synchronized (_signal) {
+                    _signal.notifyAll();
+                }
+            }
+            Runnable wakeUp;
+            while ((wakeUp = _wakeUps.poll()) != null) {
+                wakeUp.run();
+            }
+        }
+
+        private void _handleSlowReaders() throws IOException {
+            SlowReaderPolicy policy = _slowReaderPolicy;
+            long stalledSince = _stalledSince;
+            if (policy == SlowReaderPolicy.WAIT || stalledSince == 0
+                    || System.nanoTime() - stalledSince < _maxWaitMillis * 1000000) {
+                return;
+            }
+            _loadLock.lock();
+            try {
+                if (_stalledSince == 0 || _failure != null) {
+                    return;
+                }
+                long behind = _published - _ring.length; // the chunk the next one overwrites
+                for (ParallelStream par : _readers) {
+                    long taken = par._sequence;
+                    if (taken > behind) {
+                        continue;
+                    }
+                    if (policy == SlowReaderPolicy.FAIL) {
+                        _failure = new IOException("A reader has kept the others waiting for over " + _maxWaitMillis + " ms");
+                        break;
+                    }
+                    // stops it from moving on its own, it sees why as soon as it gets the lock
+                    if (!SEQUENCE.compareAndSet(par, taken, DETACHEDBYSOURCE)) {
+                        continue;
+                    }
+                    _removeReader(par);
+                    if (policy == SlowReaderPolicy.DETACH) {
+                        par._detachedTemporarily = true;
+                        par._detachedBySource = true;
+                        _temporarilyDetachedReaders.add(par);
+                        _log._detach(par, taken, _ring, _mask, _published);
+                    } else {
+                        _log._close(par);
+                        par._evicted = true;
+                    }
+                }
+            } finally {
+                _loadLock.unlock();
+            }
+            _signal();
+        }
+
+        private void _detach(ParallelStream par, boolean temporarily) throws IOException {
+            _loadLock.lock();
+            try {
+                _removeReader(par);
+
+                if (temporarily) {
+                    if (!par._detachedTemporarily) {
+                        par._detachedTemporarily = true;
+                        _temporarilyDetachedReaders.add(par);
+                        _log._detach(par, par._sequence, _ring, _mask, _published);
+                        par._sequence = _published;
+                    }
+                } else {
+                    _log._close(par);
+                    if (par._detachedTemporarily) {
+                        par._detachedTemporarily = false;
+                        _temporarilyDetachedReaders.remove(par);
+                    }
+                }
+
+                if (!temporarily && _readers.length == 0 && _temporarilyDetachedReaders.isEmpty() && !_closed) {
+                    _closed = true;
+                    _providers.computeIfPresent(new SourceKey(_key), (k, reference) -> reference.get() == this ? null : reference);
+                    for (ObjectName objectName : _objectNames) {
+                        try {
+                            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                        } catch (JMException e) {
+                            // unregistered by someone else
+                        }
+                    }
+                    _inputStream.close();
+                }
+            } finally {
+                _loadLock.unlock();
+            }
+            _signal();
+        }
+
+        private boolean _attach(ParallelStream par, boolean replay) {
+            _loadLock.lock();
+            try {
+                if (_closed) {
+                    return false;
+                }
+                if (par._detachedTemporarily) {
+                    _temporarilyDetachedReaders.remove(par);
+                    par._detachedTemporarily = false;
+                    par._detachedBySource = false;
+                    // everything published so far is kept for it in the log
+                    _log._reattach(par, _published);
+                    par._sequence = _published;
+                } else if (_indexOf(par) >= 0) {
+                    return true;
+                } else {
+                    if (replay) {
+                        _log._replay(par, _published);
+                    }
+                    par._sequence = _published;
+                }
+                ParallelStream[] readers = Arrays.copyOf(_readers, _readers.length + 1);
+                readers[readers.length - 1] = par;
+                _readers = readers;
+            } finally {
+                _loadLock.unlock();
+            }
+            _signal();
+            return true;
+        }
+
+        private void _removeReader(ParallelStream par) {
+            int index = _indexOf(par);
+            if (index >= 0) {
+                ParallelStream[] readers = new ParallelStream[_readers.length - 1];
+                System.arraycopy(_readers, 0, readers, 0, index);
+                System.arraycopy(_readers, index + 1, readers, index, readers.length - index);
+                _readers = readers;
+            }
+        }
+
+        private int _indexOf(ParallelStream par) {
+            ParallelStream[] readers = _readers;
+            for (int i = 0; i < readers.length; i++) {
+                if (readers[i] == par) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean _isExhausted(ParallelStream par) {
+            return par._logPosition >= _end;
+        }
+
+        private long _lag(ParallelStream par) {
+            long ret = _log._backlog(par);
+            if (!par._detachedTemporarily) {
+                ret += Math.max(0, _published - par._sequence);
+            }
+            return ret;
+        }
+
+        private long _lagBytes(ParallelStream par) {
+            long ret = _log._backlogBytes(par);
+            if (!par._detachedTemporarily) {
+                long published = _published;
+                // the reader's cursor keeps these chunks in the ring
+                for (long sequence = Math.max(par._sequence + 1, published - _mask); sequence <= published; sequence++) {
+                    ret += _ring[(int) sequence & _mask]._buffer.remaining();
+                }
+            }
+            return ret;
+        }
+
+        private class Metrics implements SourceMetricsMXBean {
+
+            @Override
+            public long getBytesRead() {
+                return _bytesRead;
+            }
+
+            @Override
+            public long getChunksRead() {
+                return _published + 1;
+            }
+
+            @Override
+            public int getChunkSize() {
+                ChunkSizingPolicy policy = _chunkSizing;
+                return _channel == null ? Math.max(policy.getMinSize(), Math.min(policy.getMaxSize(), _chunkSize)) : MAPPEDCHUNKSIZE;
+            }
+
+            @Override
+            public long getBlockedMillis() {
+                return _blockedNanos.sum() / 1000000;
+            }
+
+            @Override
+            public int getReaderCount() {
+                return _readers.length;
+            }
+
+            @Override
+            public int getDetachedReaderCount() {
+                _loadLock.lock();
+                try {
+                    return _temporarilyDetachedReaders.size();
+                } finally {
+                    _loadLock.unlock();
+                }
+            }
+
+            private ParallelStream[] _allReaders() {
+                _loadLock.lock();
+                try {
+                    ParallelStream[] ret = Arrays.copyOf(_readers, _readers.length + _temporarilyDetachedReaders.size());
+                    int i = _readers.length;
+                    for (ParallelStream par : _temporarilyDetachedReaders) {
+                        ret[i++] = par;
+                    }
+                    return ret;
+                } finally {
+                    _loadLock.unlock();
+                }
+            }
+
+            @Override
+            public long[] getReaderLags() {
+                ParallelStream[] readers = _allReaders();
+                long[] ret = new long[readers.length];
+                for (int i = 0; i < readers.length; i++) {
+                    ret[i] = _lag(readers[i]);
+                }
+                return ret;
+            }
+
+            @Override
+            public long[] getReaderLagBytes() {
+                ParallelStream[] readers = _allReaders();
+                long[] ret = new long[readers.length];
+                for (int i = 0; i < readers.length; i++) {
+                    ret[i] = _lagBytes(readers[i]);
+                }
+                return ret;
+            }
+
+            @Override
+            public long getMaxLag() {
+                long ret = 0;
+                for (long lag : getReaderLags()) {
+                    ret = Math.max(ret, lag);
+                }
+                return ret;
+            }
+
+            @Override
+            public long getRetainedBytes() {
+                return _log._retainedBytes();
+            }
+
+            @Override
+            public long getSpilledBytes() {
+                return _log._spilledBytes();
+            }
+
+            @Override
+            public long getAllocatedChunks() {
+                return _pool._allocated();
+            }
+
+            @Override
+            public long getReusedChunks() {
+                return _pool._reused();
+            }
+        }
+
+    }
+
+    /**
+     * The chunks kept for the temporarily detached readers and the replay
+     * window. Every chunk is stored once, counting the readers that still
+     * have to read it, and is released as soon as the last of them moves past
+     * it and it falls out of the window. The readers keep
+     * their own positions in the log. The chunks that don't fit into the
+     * memory budget of the provider are written to a temporary file.
+     */
+    private static class ChunkLog {
+
+        private Entry[] _entries = new Entry[16];
+        private int _head = 0;
+        private int _size = 0;
+        private long _first = 0; // the sequence of the chunk at the head
+        private int _detachedCount = 0;
+        private long _retainedBytes = 0;
+        private long _spilledBytes = 0;
+        private int _spilledCount = 0;
+        private FileChannel _spill = null;
+        private long _spillWritten = 0;
+        private long _window = 0;
+
+        private synchronized void _setWindow(long bytes) {
+            _window = bytes;
+            _release();
+        }
+
+        private synchronized void _replay(ParallelStream par, long published) {
+            long end = _first + _size;
+            if (end != published + 1) {
+                return; // what is kept doesn't reach the live chunks
+            }
+            long from = end;
+            while (from > _first && _entry(from - 1) != null) {
+                from--;
+            }
+            par._logPosition = from;
+            par._logEnd = end;
+            for (long sequence = from; sequence < end; sequence++) {
+                _entry(sequence)._refs++;
+            }
+        }
+
+        private synchronized void _detach(ParallelStream par, long taken, Chunk[] ring, int mask, long published) {
+            long from;
+            if (par._logPosition < par._logEnd) { // still reading what was kept before the last reattach
+                from = par._logEnd;
+            } else {
+                from = taken + 1;
+                par._logPosition = from;
+            }
+            par._logEnd = Long.MAX_VALUE;
+            _detachedCount++;
+
+            if (from > published) {
+                return;
+            }
+
+            // the chunks it hasn't taken from the ring yet may be overwritten there soon
+            if (_size == 0) {
+                _first = from;
+            }
+            for (long sequence = _first - 1; sequence >= from; sequence--) {
+                _addFirst(new Entry(ring[(int) sequence & mask]));
+                _entries[_head]._data._retain();
+                _retainedBytes += _entries[_head]._length;
+            }
+            for (long sequence = _first + _size; sequence <= published; sequence++) {
+                if (sequence < from) {
+                    // nobody needs the chunks between the ones kept for the reattached readers and this one
+                    _addLast(null);
+                } else {
+                    _addLast(new Entry(ring[(int) sequence & mask]));
+                    _entry(sequence)._data._retain();
+                    _retainedBytes += _entry(sequence)._length;
+                }
+            }
+            for (long sequence = from; sequence <= published; sequence++) {
+                Entry entry = _entry(sequence);
+                if (entry == null) { // skipped when only the reattached readers needed the chunks around it
+                    entry = new Entry(ring[(int) sequence & mask]);
+                    entry._data._retain();
+                    _retainedBytes += entry._length;
+                    _entries[(_head + (int) (sequence - _first)) & (_entries.length - 1)] = entry;
+                }
+                entry._refs++;
+            }
+        }
+
+        private synchronized void _reattach(ParallelStream par, long published) {
+            // it still has to read what was kept for it until now
+            par._logEnd = published + 1;
+            _detachedCount--;
+            _release();
+        }
+
+        private synchronized void _close(ParallelStream par) {
+            if (par._detachedTemporarily) {
+                _detachedCount--;
+            }
+            long end = Math.min(par._logEnd, _first + _size);
+            for (long sequence = Math.max(par._logPosition, _first); sequence < end; sequence++) {
+                _entry(sequence)._refs--;
+            }
+            par._logPosition = par._logEnd;
+            _release();
+        }
+
+        private synchronized void _append(long sequence, Chunk chunk, long memoryBudget, File directory) {
+            if (_detachedCount == 0 && _window == 0) {
+                return;
+            }
+            if (_size == 0) {
+                _first = sequence;
+            }
+            while (_first + _size < sequence) { // only the reattached readers had chunks before
+                _addLast(null);
+            }
+
+            Entry entry = new Entry(chunk);
+            entry._refs = _detachedCount;
+            if (_retainedBytes + entry._length > memoryBudget) {
+                entry._data = null;
+                entry._spillOffset = _spillWritten;
+                try {
+                    if (_spill == null) {
+                        Path file = directory == null
+                                ? Files.createTempFile("parallelstream", ".spill")
+                                : Files.createTempFile(directory.toPath(), "parallelstream", ".spill");
+                        _spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                StandardOpenOption.DELETE_ON_CLOSE);
+                    }
+                    ByteBuffer buffer = chunk._buffer.duplicate();
+                    while (buffer.hasRemaining()) {
+                        _spill.write(buffer, _spillWritten + buffer.position() - chunk._buffer.position());
+                    }
+                    _spillWritten += entry._length;
+                } catch (IOException e) {
+                    entry._failure = e;
+                }
+                _spilledCount++;
+                _spilledBytes += entry._length;
+            } else {
+                chunk._retain();
+                _retainedBytes += entry._length;
+            }
+            _addLast(entry);
+            _release();
+        }
+
+        private synchronized Chunk _poll(ParallelStream par) throws IOException {
+            long sequence = par._logPosition;
+            if (sequence >= par._logEnd || sequence >= _first + _size) {
+                return null;
+            }
+
+            Entry entry = _entry(sequence);
+            Chunk ret = entry._data;
+            if (ret == null) {
+                if (entry._failure != null) {
+                    throw new IOException("Couldn't keep a chunk for a detached reader", entry._failure);
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(entry._length);
+                while (buffer.hasRemaining()) {
+                    if (_spill.read(buffer, entry._spillOffset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of the spill file");
+                    }
+                }
+                ((Buffer) buffer).flip();
+                ret = new Chunk(buffer, null);
+            } else {
+                ret._retain();
+            }
+
+            par._logPosition = sequence + 1;
+            entry._refs--;
+            _release();
+            return ret;
+        }
+
+        private synchronized int _peekSize(ParallelStream par) {
+            long sequence = par._logPosition;
+            if (sequence >= par._logEnd || sequence >= _first + _size) {
+                return 0;
+            }
+            return _entry(sequence)._length;
+        }
+
+        private synchronized long _backlog(ParallelStream par) {
+            return Math.max(0, Math.min(par._logEnd, _first + _size) - Math.max(par._logPosition, _first));
+        }
+
+        private synchronized long _backlogBytes(ParallelStream par) {
+            long ret = 0;
+            long end = Math.min(par._logEnd, _first + _size);
+            for (long sequence = Math.max(par._logPosition, _first); sequence < end; sequence++) {
+                Entry entry = _entry(sequence);
+                if (entry != null) {
+                    ret += entry._length;
+                }
+            }
+            return ret;
+        }
+
+        private synchronized long _retainedBytes() {
+            return _retainedBytes;
+        }
+
+        private synchronized long _spilledBytes() {
+            return _spilledBytes;
+        }
+
+        private void _release() {
+            while (_size > 0 && (_entries[_head] == null
+                    || _entries[_head]._refs <= 0 && _retainedBytes + _spilledBytes - _entries[_head]._length >= _window)) {
+                Entry entry = _entries[_head];
+                _entries[_head] = null;
+                _head = (_head + 1) & (_entries.length - 1);
+                _size--;
+                _first++;
+                if (entry == null) {
+                    continue;
+                }
+                if (entry._data != null) {
+                    _retainedBytes -= entry._length;
+                    entry._data._release();
+                } else {
+                    _spilledCount--;
+                    _spilledBytes -= entry._length;
+                }
+            }
+            if (_spilledCount == 0 && _spill != null) { // nothing left on disk, back to memory
+                try {
+                    _spill.close();
+                } catch (IOException e) {
+                    // the file is deleted on close anyway
+                }
+                _spill = null;
+                _spillWritten = 0;
+            }
+        }
+
+        private Entry _entry(long sequence) {
+            return _entries[(_head + (int) (sequence - _first)) & (_entries.length - 1)];
+        }
+
+        private void _addFirst(Entry entry) {
+            _grow();
+            _head = (_head - 1) & (_entries.length - 1);
+            _entries[_head] = entry;
+            _size++;
+            _first--;
+        }
+
+        private void _addLast(Entry entry) {
+            _grow();
+            _entries[(_head + _size) & (_entries.length - 1)] = entry;
+            _size++;
+        }
+
+        private void _grow() {
+            if (_size == _entries.length) {
+                Entry[] entries = new Entry[_entries.length * 2];
+                for (int i = 0; i < _size; i++) {
+                    entries[i] = _entries[(_head + i) & (_entries.length - 1)];
+                }
+                _entries = entries;
+                _head = 0;
+            }
+        }
+
+        private static class Entry {
+
+            private Chunk _data;
+            private final int _length;
+            private long _spillOffset;
+            private IOException _failure = null;
+            private int _refs = 0;
+
+            private Entry(Chunk data) {
+                _data = data;
+                _length = data._buffer.remaining();
+            }
+        }
+
+    }
+
+    /**
+     * The identity of a source in the registry, that doesn't keep the source
+     * from being collected.
+     */
+    private static class SourceKey extends WeakReference<Object> {
+
+        private final int _hash;
+
+        private SourceKey(Object source) {
+            super(source);
+            _hash = System.identityHashCode(source);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SourceKey)) {
+                return false;
+            }
+            Object source = get();
+            return source != null && source == ((SourceKey) obj).get();
+        }
+    }
+
+    /**
+     * The registry entry of a provider. It is queued when the provider is
+     * collected, so that the entry can be removed.
+     */
+    private static class ProviderReference extends WeakReference<Provider> {
+
+        private final SourceKey _key;
+
+        private ProviderReference(SourceKey key, Provider provider) {
+            super(provider, _abandonedProviders);
+            _key = key;
+        }
+    }
+
+    /**
+     * A chunk of the source shared by the ring, the log and the readers. A
+     * pooled chunk goes back to its pool when the last of them releases it.
+     * The other chunks, the mapped ones and the shared markers, aren't
+     * counted and are left to the garbage collector.
+     */
+    private static class Chunk {
+
+        private static final AtomicIntegerFieldUpdater<Chunk> REFS = AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "_refs");
+
+        private final ByteBuffer _buffer;
+        private final ChunkPool _pool;
+        private volatile int _refs = 1;
+
+        private Chunk(ByteBuffer buffer, ChunkPool pool) {
+            _buffer = buffer;
+            _pool = pool;
+        }
+
+        private void _retain() {
+            if (_pool != null) {
+                REFS.incrementAndGet(this);
+            }
+        }
+
+        /**
+         * @return false if the chunk has been released by all, and may be in
+         * the pool already
+         */
+        private boolean _tryRetain() {
+            if (_pool == null) {
+                return true;
+            }
+            int refs;
+            do {
+                refs = _refs;
+                if (refs <= 0) {
+                    return false;
+                }
+            } while (!REFS.compareAndSet(this, refs, refs + 1));
+            return true;
+        }
+
+        private void _release() {
+            if (_pool != null && REFS.decrementAndGet(this) == 0) {
+                _pool._recycle(this);
+            }
+        }
+    }
+
+    /**
+     * Keeps the released chunks of a source by the power of two of their
+     * capacity, to read the next chunks into.
+     */
+    private static class ChunkPool {
+
+        private final Chunk[][] _free = new Chunk[31][];
+        private final int[] _freeCount = new int[31];
+        private final int _keep;
+        private long _allocated = 0;
+        private long _reused = 0;
+
+        private ChunkPool(int keep) {
+            _keep = keep;
+        }
+
+        private Chunk _take(int size) {
+            int sizeClass = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+            if (sizeClass < _free.length) {
+                synchronized (this) {
+                    if (_freeCount[sizeClass] > 0) {
+                        _freeCount[sizeClass]--;
+                        Chunk ret = _free[sizeClass][_freeCount[sizeClass]];
+                        _free[sizeClass][_freeCount[sizeClass]] = null;
+                        _reused++;
+                        ret._refs = 1;
+                        ((Buffer) ret._buffer).clear();
+                        return ret;
+                    }
+                    _allocated++;
+                }
+                return new Chunk(ByteBuffer.allocate(1 << sizeClass), this);
+            }
+            synchronized (this) {
+                _allocated++;
+            }
+            return new Chunk(ByteBuffer.allocate(size), null);
+        }
+
+        private synchronized void _recycle(Chunk chunk) {
+            int sizeClass = 31 - Integer.numberOfLeadingZeros(chunk._buffer.capacity());
+            if (_free[sizeClass] == null) {
+                _free[sizeClass] = new Chunk[_keep];
+            }
+            if (_freeCount[sizeClass] < _keep) {
+                _free[sizeClass][_freeCount[sizeClass]] = chunk;
+                _freeCount[sizeClass]++;
+            }
+        }
+
+        private synchronized long _allocated() {
+            return _allocated;
+        }
+
+        private synchronized long _reused() {
+            return _reused;
+        }
     }
 
     /**
@@ -362,14 +2328,15 @@ public class ParallelStream extends InputStream {
         }
 
         try {
-            int byt;
+            byte[] buf = new byte[8192];
+            int len;
             int i = 0;
             int j = 0;
             long tot = 0;
             long time = System.currentTimeMillis();
-            while ((byt = ms[0].read()) != -1) {
-                fos[0].write(byt);
-                i++;
+            while ((len = ms[0].read(buf)) != -1) {
+                fos[0].write(buf, 0, len);
+                i += len;
                 if (i > 1048576) {
                     i = 0;
                     long took = System.currentTimeMillis() - time;
@@ -16,9 +16,24 @@
 package com.vsetec.utilities;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *
@@ -88,12 +103,414 @@ public class ReaderTokenizer {
 
     }
 
+    public Stream<String> tokenizeAsStream(final Reader reader) {
+        return tokenizeAsStream(reader, _delimiter, _repeatFirstLines);
+    }
+
+    /**
+     * Tokenizes the reader as
+     * {@link #tokenizeWithHeaderAndDelimiter(Reader, String, int)} does, into
+     * an ordered stream. Nothing is read until the stream starts, and closing
+     * the stream closes the reader, also when the tokens are not read to the
+     * end. The reader is read by one thread, and a parallel stream gets the
+     * tokens from it in batches.
+     *
+     * @param reader the text to tokenize
+     * @param delimiter the delimiter the tokens end with
+     * @param headerTokenNumber how many first tokens make the header
+     * @return the stream of the tokens; closing it closes the reader
+     */
+    public Stream<String> tokenizeAsStream(final Reader reader, String delimiter, int headerTokenNumber) {
+        return StreamSupport.stream(new ReaderTokenSpliterator(reader, delimiter, headerTokenNumber), false).onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static class ReaderTokenSpliterator extends Spliterators.AbstractSpliterator<String> {
+
+        private final TokenIterator _tokens;
+        private final int _headerTokenNumber;
+        private String _header = null;
+
+        private ReaderTokenSpliterator(Reader reader, String delimiter, int headerTokenNumber) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            _tokens = new TokenIterator(reader, delimiter);
+            _headerTokenNumber = headerTokenNumber;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            if (_header == null) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < _headerTokenNumber && _tokens.hasNext(); i++) {
+                    sb.append(_tokens.next());
+                }
+                _header = sb.toString();
+            }
+            if (!_tokens.hasNext()) {
+                return false;
+            }
+            String token = _tokens.next();
+            action.accept(_header.isEmpty() ? token : _header + token);
+            return true;
+        }
+    }
+
+    /**
+     * Tokenizes the file in parallel, with the delimiter and the header of this
+     * tokenizer.
+     *
+     * @param file the file to tokenize
+     * @param charset the encoding of the file
+     * @return the parallel stream of the tokens, to be closed
+     * @throws IOException if the file can't be opened or its header read
+     * @see #tokenizeFileWithHeaderAndDelimiter(Path, Charset, String, int)
+     */
+    public Stream<String> tokenizeFile(Path file, Charset charset) throws IOException {
+        return tokenizeFileWithHeaderAndDelimiter(file, charset, _delimiter, _repeatFirstLines);
+    }
+
+    /**
+     * Tokenizes the file in parallel. The file is split into byte ranges that
+     * start right after a delimiter, and the ranges are tokenized
+     * concurrently, each prefixed with the header like the tokens of
+     * {@link #tokenizeWithHeaderAndDelimiter(Reader, String, int)}. The tokens
+     * are the same as those of the whole file read sequentially, and come in
+     * the file order to the ordered operations of the stream.
+     * <p>
+     * The file is split only if its delimiters can be found in the raw bytes,
+     * that is, the charset is UTF-8 or single-byte, and only if the delimiter
+     * can't overlap itself, like "\n" or "\r\n" but not "aa". Otherwise it is
+     * tokenized in one piece.
+     *
+     * @param file the file to tokenize
+     * @param charset the encoding of the file
+     * @param delimiter the delimiter the tokens end with
+     * @param headerTokenNumber how many first tokens make the header
+     * @return the parallel stream of the tokens; closing it closes the file
+     * @throws IOException if the file can't be opened or its header read
+     */
+    public Stream<String> tokenizeFileWithHeaderAndDelimiter(Path file, Charset charset, String delimiter, int headerTokenNumber) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            Spliterator<String> spliterator;
+            byte[] delimiterBytes = _splittingDelimiter(charset, delimiter);
+            if (delimiterBytes == null) {
+                Iterator<String> tokens = tokenizeWithHeaderAndDelimiter(
+                        new InputStreamReader(new RangeInputStream(channel, 0, channel.size()), charset), delimiter, headerTokenNumber);
+                spliterator = Spliterators.spliteratorUnknownSize(tokens, Spliterator.ORDERED | Spliterator.NONNULL);
+            } else {
+                long size = channel.size();
+                long headerEnd = 0;
+                for (int i = 0; i < headerTokenNumber && headerEnd >= 0; i++) {
+                    headerEnd = _delimiterEnd(channel, delimiterBytes, headerEnd, size);
+                }
+                if (headerEnd < 0) { // it's all header
+                    spliterator = Spliterators.emptySpliterator();
+                } else {
+                    ByteBuffer header = ByteBuffer.allocate((int) headerEnd);
+                    while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                    }
+                    spliterator = new FileTokenSpliterator(channel, charset, delimiter, delimiterBytes,
+                            new String(header.array(), 0, header.position(), charset), headerEnd, size, true);
+                }
+            }
+            return StreamSupport.stream(spliterator, true).onClose(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the delimiter in the charset, if the file can be split at its
+     * occurrences in the bytes
+     */
+    private static byte[] _splittingDelimiter(Charset charset, String delimiter) {
+        if (!charset.equals(StandardCharsets.UTF_8) && charset.newEncoder().maxBytesPerChar() != 1) {
+            return null;
+        }
+        if (!charset.newEncoder().canEncode(delimiter)) {
+            return null;
+        }
+        byte[] ret = delimiter.getBytes(charset);
+        for (int border = 1; border < ret.length; border++) {
+            boolean overlaps = true;
+            for (int i = 0; i < border && overlaps; i++) {
+                overlaps = ret[i] == ret[ret.length - border + i];
+            }
+            if (overlaps) {
+                return null; // an occurrence found in the middle may not be where the tokens end
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the position after the first delimiter found from the position,
+     * or -1 if there's none before the limit
+     */
+    private static long _delimiterEnd(FileChannel channel, byte[] delimiter, long from, long limit) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(FileTokenSpliterator.WINDOWSIZE, delimiter.length * 2));
+        byte[] bytes = buffer.array();
+        long position = from;
+        while (position + delimiter.length <= limit) {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), limit - position));
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            }
+            int read = buffer.position();
+            for (int i = 0; i + delimiter.length <= read; i++) {
+                if (bytes[i] != delimiter[0]) {
+                    continue;
+                }
+                int matched = 1;
+                while (matched < delimiter.length && bytes[i + matched] == delimiter[matched]) {
+                    matched++;
+                }
+                if (matched == delimiter.length) {
+                    return position + i + matched;
+                }
+            }
+            if (read < buffer.limit() || read < delimiter.length) {
+                return -1; // the file is shorter than it was
+            }
+            position += read - delimiter.length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * The tokens of a range of a file, that starts right after a delimiter and
+     * ends right after a delimiter or at the end of the file.
+     */
+    private static class FileTokenSpliterator implements Spliterator<String> {
+
+        private static final int WINDOWSIZE = 65536;
+        private static final long MINSPLITSIZE = 1024 * 1024;
+
+        private final FileChannel _channel;
+        private final Charset _charset;
+        private final String _delimiter;
+        private final byte[] _delimiterBytes;
+        private final String _header;
+        private long _start;
+        private final long _end;
+        private final boolean _last; // ends at the end of the file
+        private TokenIterator _tokens = null;
+
+        private FileTokenSpliterator(FileChannel channel, Charset charset, String delimiter, byte[] delimiterBytes, String header, long start, long end, boolean last) {
+            _channel = channel;
+            _charset = charset;
+            _delimiter = delimiter;
+            _delimiterBytes = delimiterBytes;
+            _header = header;
+            _start = start;
+            _end = end;
+            _last = last;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            if (_tokens == null) {
+                _tokens = new TokenIterator(new InputStreamReader(new RangeInputStream(_channel, _start, _end), _charset), _delimiter);
+            }
+            if (!_tokens.hasNext()) {
+                return false;
+            }
+            String token = _tokens.next();
+            if (token.isEmpty() && !_last) {
+                return false; // the end of the range isn't the end of the file
+            }
+            action.accept(_header.isEmpty() ? token : _header + token);
+            return true;
+        }
+
+        @Override
+        public Spliterator<String> trySplit() {
+            if (_tokens != null || _end - _start < MINSPLITSIZE) {
+                return null;
+            }
+            long boundary;
+            try {
+                boundary = _delimiterEnd(_channel, _delimiterBytes, _start + (_end - _start) / 2, _end);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (boundary < 0 || boundary >= _end) {
+                return null;
+            }
+            Spliterator<String> ret = new FileTokenSpliterator(_channel, _charset, _delimiter, _delimiterBytes, _header, _start, boundary, false);
+            _start = boundary;
+            return ret;
+        }
+
+        @Override
+        public long estimateSize() {
+            return _end - _start; // in bytes, more than there are tokens
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * Reads a range of a file channel without moving its position, so that
+     * several ranges can be read at once.
+     */
+    private static class RangeInputStream extends InputStream {
+
+        private final FileChannel _channel;
+        private long _position;
+        private final long _end;
+
+        private RangeInputStream(FileChannel channel, long start, long end) {
+            _channel = channel;
+            _position = start;
+            _end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (_position >= _end) {
+                return -1;
+            }
+            int read = _channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, _end - _position)), _position);
+            if (read > 0) {
+                _position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // the channel is shared by the ranges
+        }
+    }
+
+    /**
+     * Receives the tokens one by one, without a String made for every token.
+     */
+    public interface TokenVisitor {
+
+        /**
+         * @param header the header tokens, the same for all tokens; empty if
+         * there's no header
+         * @param token the token with its delimiter. The view is reused for the
+         * next token, so it is only valid until this method returns; call
+         * {@code toString()} on it to keep it
+         * @return false to stop tokenizing
+         */
+        boolean visit(CharSequence header, CharSequence token);
+    }
+
+    public void tokenize(final Reader reader, TokenVisitor visitor) throws IOException {
+        tokenizeWithHeaderAndDelimiter(reader, _delimiter, _repeatFirstLines, visitor);
+    }
+
+    /**
+     * Tokenizes the reader the same way as
+     * {@link #tokenizeWithHeaderAndDelimiter(Reader, String, int)}, handing
+     * the tokens to the visitor as they are found. The tokens that are not
+     * kept cost no allocation, and the header is given separately instead of
+     * being prepended to every token. The reader is closed when the tokens
+     * end or the visitor stops.
+     *
+     * @param reader the text to tokenize
+     * @param delimiter the delimiter the tokens end with
+     * @param headerTokenNumber how many first tokens make the header
+     * @param visitor gets the tokens
+     * @throws IOException if reading fails
+     */
+    public void tokenizeWithHeaderAndDelimiter(final Reader reader, String delimiter, int headerTokenNumber, TokenVisitor visitor) throws IOException {
+        TokenIterator tokens = new TokenIterator(reader, delimiter);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < headerTokenNumber; i++) {
+            if (tokens.hasNext()) {
+                sb.append(tokens.next());
+            }
+        }
+        tokens._visit(sb.toString(), visitor);
+    }
+
+    /**
+     * A piece of a char array, shown as a CharSequence.
+     */
+    private static class TokenView implements CharSequence {
+
+        private char[] _array;
+        private int _offset;
+        private int _length;
+
+        private void _set(char[] array, int offset, int length) {
+            _array = array;
+            _offset = offset;
+            _length = length;
+        }
+
+        @Override
+        public int length() {
+            return _length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= _length) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + _length);
+            }
+            return _array[_offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > _length || start > end) {
+                throw new IndexOutOfBoundsException("From " + start + " to " + end + " of " + _length);
+            }
+            return new String(_array, _offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(_array, _offset, _length);
+        }
+    }
+
     public static class TokenIterator implements Iterator<String> {
 
+        private static final int BLOCKSIZE = 8192;
+
         private String _curString = null;
         private boolean _endReached = false;
         private final Reader _reader;
         private char[] _token;
+        private int[] _fallback; // for every matched length, the length of the longest delimiter prefix that also ends the match
+        private final char[] _block = new char[BLOCKSIZE]; // read from the reader in bulk
+        private int _blockPos = 0;
+        private int _blockEnd = 0;
+        private int _tokenStart = 0; // where the last token found starts in the block
+        private char[] _joined = new char[0]; // the straddling token put together for a visitor
+        private final StringBuilder _straddling = new StringBuilder(255); // the start of a token from the previous blocks
 
         public TokenIterator(Reader reader, String delimiter) {
             setToken(delimiter);
@@ -101,44 +518,141 @@ public class ReaderTokenizer {
         }
 
         public final void setToken(String token) {
-            _token = token.toCharArray();
-            if (_token.length == 0) {
+            char[] chars = token.toCharArray();
+            if (chars.length == 0) {
                 throw new IllegalArgumentException("Can't tokenize with the empty string");
             }
+            // Knuth-Morris-Pratt: on a mismatch the match falls back to the longest part that still may continue
+            int[] fallback = new int[chars.length];
+            for (int i = 1, matched = 0; i < chars.length; i++) {
+                while (matched > 0 && chars[i] != chars[matched]) {
+                    matched = fallback[matched - 1];
+                }
+                if (chars[i] == chars[matched]) {
+                    matched++;
+                }
+                fallback[i] = matched;
+            }
+            _token = chars;
+            _fallback = fallback;
         }
 
         private void _readNextToken() throws IOException {
+            _scanNextToken();
+            int length = _blockPos - _tokenStart;
+            if (_straddling.length() == 0) {
+                _curString = new String(_block, _tokenStart, length);
+            } else {
+                _curString = _straddling.append(_block, _tokenStart, length).toString();
+            }
+        }
 
-            int curCharInt;
-            char previousChar = (char) -1;
-            int tokenPos = 0;
-            StringBuilder sb = new StringBuilder(255);
+        /**
+         * Finds the next token, which is then the chars in {@link #_straddling}
+         * followed by the chars of the block from {@link #_tokenStart} to
+         * {@link #_blockPos}.
+         */
+        private void _scanNextToken() throws IOException {
+
+            final char[] token = _token;
+            final int[] fallback = _fallback;
+            final char first = token[0];
+            final int last = token.length - 1;
+            final char[] block = _block;
+            int matched = 0;
+            int start = _blockPos;
+            _straddling.setLength(0);
 
             while (true) {
-                curCharInt = _reader.read();
-                if (curCharInt == -1) {
+                int end = _blockEnd;
+                int i = _blockPos;
+                while (i < end) {
+                    if (matched == 0) {
+                        while (i < end && block[i] != first) {
+                            i++;
+                        }
+                        if (i == end) {
+                            break;
+                        }
+                    }
+
+                    char curChar = block[i++];
+                    while (matched > 0 && curChar != token[matched]) {
+                        matched = fallback[matched - 1];
+                    }
+                    if (curChar == token[matched]) {
+                        if (matched < last) {
+                            matched++;
+                            continue;
+                        }
+                        // the delimiter can't start in the middle of a surrogate pair
+                        int delimiterStart = _straddling.length() + i - start - token.length;
+                        if (delimiterStart == 0 || !Character.isHighSurrogate(_charAt(delimiterStart - 1, start))) {
+                            _tokenStart = start;
+                            _blockPos = i;
+                            return;
+                        }
+                        matched = fallback[last];
+                    }
+                }
+
+                // the token goes on in the next block
+                _straddling.append(block, start, end - start);
+                int read = _reader.read(block, 0, block.length);
+                if (read == -1) {
+                    _tokenStart = 0;
+                    _blockPos = 0;
+                    _blockEnd = 0;
                     _endReached = true;
                     _reader.close();
-                    break;
+                    return;
                 }
-                if (curCharInt == _token[tokenPos]) {
-
-                    if (tokenPos != 0 || !Character.isHighSurrogate(previousChar)) {
-                        tokenPos++;
+                _blockPos = 0;
+                _blockEnd = read;
+                start = 0;
+            }
+        }
 
-                        if (tokenPos >= _token.length) {
-                            tokenPos = 0;
-                            previousChar = (char) curCharInt;
-                            sb.append(previousChar);
-                            break;
+        /**
+         * Hands the rest of the tokens to the visitor as a view that is reused
+         * for every token, and closes the reader.
+         */
+        private void _visit(String header, TokenVisitor visitor) throws IOException {
+            try {
+                if (_curString != null) {
+                    String token = _curString;
+                    _curString = null;
+                    if (!visitor.visit(header, token)) {
+                        return;
+                    }
+                }
+                TokenView view = new TokenView();
+                while (!_endReached) {
+                    _scanNextToken();
+                    int length = _blockPos - _tokenStart;
+                    int straddling = _straddling.length();
+                    if (straddling == 0) {
+                        view._set(_block, _tokenStart, length);
+                    } else {
+                        if (_joined.length < straddling + length) {
+                            _joined = new char[Math.max(_joined.length * 2, straddling + length)];
                         }
+                        _straddling.getChars(0, straddling, _joined, 0);
+                        System.arraycopy(_block, _tokenStart, _joined, straddling, length);
+                        view._set(_joined, 0, straddling + length);
+                    }
+                    if (!visitor.visit(header, view)) {
+                        return;
                     }
                 }
-
-                previousChar = (char) curCharInt;
-                sb.append(previousChar);
+            } finally {
+                _reader.close();
             }
-            _curString = sb.toString();
+        }
+
+        private char _charAt(int index, int start) {
+            int straddling = _straddling.length();
+            return index < straddling ? _straddling.charAt(index) : _block[start + index - straddling];
         }
 
         @Override
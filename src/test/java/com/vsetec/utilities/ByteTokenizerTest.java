@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Fyodor Kravchenko <fedd@vsetec.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author fedd
+ */
+public class ByteTokenizerTest {
+
+    @Test
+    public void blockingChannelIsTokenized() throws IOException {
+        Pipe pipe = Pipe.open();
+        pipe.sink().write(ByteBuffer.wrap("a;bc;d".getBytes(StandardCharsets.UTF_8)));
+        pipe.sink().close();
+        List<String> tokens = new ArrayList<>();
+        Iterator<ByteBuffer> iterator = new ByteTokenizer(";").tokenize(pipe.source());
+        while (iterator.hasNext()) {
+            tokens.add(ByteTokenizer.decode(iterator.next()));
+        }
+        assertEquals(Arrays.asList("a;", "bc;", "d"), tokens);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonBlockingChannelIsRejected() throws IOException {
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        try {
+            new ByteTokenizer(";").tokenize(pipe.source());
+        } finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+}
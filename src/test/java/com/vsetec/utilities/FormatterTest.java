@@ -0,0 +1,241 @@
+/*
+ * Copyright 2019 Fyodor Kravchenko <fedd@vsetec.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author fedd
+ */
+public class FormatterTest {
+
+    private static final String[] ZONES = {"GMT", "Europe/Moscow", "America/New_York", "Asia/Kolkata"};
+    private static final long[] MOMENTS = {
+        0,
+        -300000000000L, // 1960
+        480000000000L, // 1985, Moscow on the summer time of then
+        638000000000L, // 1990-03-20, before the Moscow summer time switch
+        662700000000L, // 1991-01-01, Moscow before it moved to the EET base
+        1300000000123L,
+        1414000000000L // 2014-10-22, Moscow before going back to +3
+    };
+
+    @Test
+    public void javaTimeFormatsPatternsLikeJavaText() {
+        Formatter text = new Formatter();
+        Formatter time = new Formatter();
+        time.setDateEngine(Formatter.DateEngine.JAVA_TIME);
+        String[] patterns = {"yyyy-MM-dd HH:mm:ss", "dd.MM.yyyy HH:mm:ss.SSS", "yyyyMMdd'T'HHmmss", "d MMM yyyy, HH:mm"};
+        for (String zone : ZONES) {
+            for (String pattern : patterns) {
+                for (long moment : MOMENTS) {
+                    Date date = new Date(moment);
+                    String test = zone + " " + pattern + " " + moment;
+                    String formatted = text.time(date, pattern, zone, Locale.US);
+                    assertEquals(test, formatted, time.time(date, pattern, zone, Locale.US));
+                    assertEquals(test, text.toTime(formatted, pattern, zone, Locale.US), time.toTime(formatted, pattern, zone, Locale.US));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void javaTimeRoundTripsStylesLikeJavaText() {
+        Formatter text = new Formatter();
+        Formatter time = new Formatter();
+        time.setDateEngine(Formatter.DateEngine.JAVA_TIME);
+        String[] styles = {"sn", "mn", "ln", "ss", "ms", "mm"};
+        for (Locale locale : new Locale[]{Locale.US, Locale.GERMANY, Locale.forLanguageTag("ru-RU")}) {
+            for (String zone : ZONES) {
+                for (String style : styles) {
+                    for (long moment : MOMENTS) {
+                        Date date = new Date(moment);
+                        String test = locale + " " + zone + " " + style + " " + moment;
+                        Date byText = text.toTime(text.time(date, style, zone, locale), style, zone, locale);
+                        Date byTime = time.toTime(time.time(date, style, zone, locale), style, zone, locale);
+                        assertEquals(test, byText, byTime);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void javaTimeFailsToParseLikeJavaText() {
+        Formatter text = new Formatter();
+        Formatter time = new Formatter();
+        time.setDateEngine(Formatter.DateEngine.JAVA_TIME);
+        String pattern = "yyyy-MM-dd HH:mm";
+        RuntimeException byText = _parseFailure(text, "not a date", pattern);
+        RuntimeException byTime = _parseFailure(time, "not a date", pattern);
+        assertEquals(byText.getClass(), byTime.getClass());
+        assertTrue(byText.getMessage(), byText.getMessage().endsWith("(" + pattern + ") failed to parse the following: not a date"));
+        assertTrue(byTime.getMessage(), byTime.getMessage().endsWith("(" + pattern + ") failed to parse the following: not a date"));
+        assertNull(time.toTime(" ", pattern, "GMT"));
+    }
+
+    private static RuntimeException _parseFailure(Formatter formatter, String source, String pattern) {
+        try {
+            formatter.toTime(source, pattern, "Europe/Moscow");
+        } catch (RuntimeException e) {
+            return e;
+        }
+        throw new AssertionError(formatter.getDateEngine() + " has parsed " + source);
+    }
+
+    @Test
+    public void formatCacheDropsTheLeastRecentlyUsed() {
+        Formatter formatter = new Formatter();
+        Date date = new Date(0);
+        int capacity = Formatter.getFormatCacheCapacity();
+        try {
+            Formatter.setFormatCacheCapacity(3);
+            formatter.uDate(date, "'a' yyyy");
+            formatter.uDate(date, "'b' yyyy");
+            formatter.uDate(date, "'c' yyyy");
+            formatter.uDate(date, "'b' yyyy");
+            formatter.uDate(date, "'a' yyyy"); // now c is the eldest
+            formatter.uDate(date, "'d' yyyy");
+
+            long misses = Formatter.getFormatCacheMisses();
+            formatter.uDate(date, "'a' yyyy");
+            formatter.uDate(date, "'b' yyyy");
+            formatter.uDate(date, "'d' yyyy");
+            assertEquals(misses, Formatter.getFormatCacheMisses());
+            formatter.uDate(date, "'c' yyyy");
+            assertEquals(misses + 1, Formatter.getFormatCacheMisses());
+        } finally {
+            Formatter.setFormatCacheCapacity(capacity);
+        }
+    }
+
+    private static DecimalFormat _decimalFormat(Locale locale) {
+        DecimalFormat ret = new DecimalFormat(); // the way Formatter makes the locale number format
+        ret.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(locale));
+        ret.setParseBigDecimal(true);
+        return ret;
+    }
+
+    @Test
+    public void numbersAreWrittenLikeDecimalFormat() {
+        Formatter formatter = new Formatter();
+        long[] longs = {0, 1, -1, 7, 999, 1000, -1234567, 123456789012345678L, Long.MAX_VALUE, Long.MIN_VALUE};
+        double[] doubles = {0.0, -0.0, 0.5, -0.5, 1.25, 0.0005, 0.0015, 0.0025, 2.0004999, 1.23456789, -9876.54321,
+            999.9995, 1e15, 1e20, 123456789.125, -1e-10, Double.MAX_VALUE, Double.MIN_VALUE,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (Locale locale : Locale.getAvailableLocales()) {
+            DecimalFormat reference = _decimalFormat(locale);
+            StringBuilder sb = new StringBuilder();
+            for (long value : longs) {
+                sb.setLength(0);
+                formatter.numberTo(sb, value, locale);
+                assertEquals(locale + " " + value, reference.format(value), sb.toString());
+                sb.setLength(0);
+                formatter.integerTo(sb, (Long) value, locale);
+                assertEquals(locale + " " + value, reference.format(value), sb.toString());
+            }
+            for (double value : doubles) {
+                sb.setLength(0);
+                formatter.numberTo(sb, value, locale);
+                // boxed, as number(Number) has always formatted it; DecimalFormat rounds 0.0005 differently for a primitive
+                assertEquals(locale + " " + value, reference.format((Object) value), sb.toString());
+            }
+        }
+    }
+
+    @Test
+    public void numbersAreParsedLikeDecimalFormat() {
+        Formatter formatter = new Formatter();
+        Random random = new Random(11);
+        for (Locale locale : Locale.getAvailableLocales()) {
+            DecimalFormat reference = _decimalFormat(locale);
+            DecimalFormatSymbols symbols = reference.getDecimalFormatSymbols();
+            char grouping = symbols.getGroupingSeparator();
+            char decimal = symbols.getDecimalSeparator();
+            String minus = reference.getNegativePrefix();
+            List<String> texts = new ArrayList<>(Arrays.asList(
+                    "0", "12", minus + "12", "1" + grouping + "234" + grouping + "567" + decimal + "25",
+                    "1" + grouping + "23" + grouping + "4", "12" + decimal + "5abc", "12 34", "1\u00a0234", "1\u202f234",
+                    "1E5", "1" + decimal + "5E-3", "1" + symbols.getExponentSeparator() + "3",
+                    "9223372036854775807", "9223372036854775808", minus + "9223372036854775809", "123456789012345678901234567890",
+                    "0" + decimal + "1", decimal + "5", "00012", "", minus, "+", "abc"));
+            for (int i = 0; i < 20; i++) {
+                texts.add(reference.format(random.nextLong() >> random.nextInt(64)));
+                texts.add(reference.format((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 5)));
+            }
+            for (String text : texts) {
+                String test = locale + " \"" + text + "\"";
+                BigDecimal expected;
+                try {
+                    Number parsed = reference.parse(text);
+                    expected = parsed instanceof BigDecimal ? (BigDecimal) parsed : null; // null for NaN and the infinities
+                } catch (ParseException e) {
+                    expected = null;
+                    for (String method : new String[]{"toLong", "toDouble"}) {
+                        try {
+                            if (method.equals("toLong")) {
+                                formatter.toLong(text, locale);
+                            } else {
+                                formatter.toDouble(text, locale);
+                            }
+                            throw new AssertionError(test + " has been parsed by " + method);
+                        } catch (RuntimeException ee) {
+                            assertTrue(test, ee.getMessage().contains("failed to parse"));
+                        }
+                    }
+                    continue;
+                }
+                if (expected != null) {
+                    assertEquals(test, expected.longValue(), formatter.toLong(text, locale));
+                    assertEquals(test, expected.doubleValue(), formatter.toDouble(text, locale), 0);
+                    assertEquals(test, 0, expected.compareTo((BigDecimal) formatter.toNumber(text, locale)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void columnOfPrimitivesRejectsBlanks() {
+        Formatter formatter = new Formatter();
+        String[] column = {"1,234.5", "-7", " "};
+        Number[] numbers = formatter.toNumbers(column, Locale.US);
+        assertEquals(-7, numbers[1].intValue());
+        assertNull(numbers[2]);
+        assertArrayEquals(new long[]{1234, -7}, formatter.toLongs(new String[]{"1,234.5", "-7"}, Locale.US));
+        try {
+            formatter.toDoubles(column, Locale.US);
+            throw new AssertionError("A blank has been parsed");
+        } catch (IllegalArgumentException e) {
+            assertEquals("The text 2 of the column is blank, it can't be a primitive number", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,698 @@
+/*
+ * Copyright 2019 Fyodor Kravchenko <fedd@vsetec.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author fedd
+ */
+public class ParallelStreamTest {
+
+    private static final int CHUNK = 100;
+
+    private static byte[] _data(int size, long seed) {
+        byte[] ret = new byte[size];
+        new Random(seed).nextBytes(ret);
+        return ret;
+    }
+
+    /**
+     * A source that gives at most one chunk per read, so the readers can count
+     * the chunks.
+     */
+    private static InputStream _chunked(byte[] data) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, CHUNK));
+            }
+        };
+    }
+
+    private static void _readChunks(ParallelStream reader, ByteArrayOutputStream out, int chunks) throws IOException {
+        byte[] buf = new byte[CHUNK];
+        for (int i = 0; i < chunks; i++) {
+            int read = 0;
+            while (read < CHUNK) {
+                int len = reader.read(buf, read, CHUNK - read);
+                if (len < 0) {
+                    break;
+                }
+                read += len;
+            }
+            out.write(buf, 0, read);
+        }
+    }
+
+    private static void _readAll(ParallelStream reader, ByteArrayOutputStream out) throws IOException {
+        byte[] buf = new byte[1000];
+        int len;
+        while ((len = reader.read(buf)) >= 0) {
+            out.write(buf, 0, len);
+        }
+        reader.close();
+    }
+
+    private static byte[] _readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[5000];
+        int len;
+        while ((len = in.read(buf)) >= 0) {
+            out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static void _readAllInParallel(ParallelStream[] readers, ByteArrayOutputStream[] outs) throws IOException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            final int y = i;
+            threads[y] = new Thread(() -> {
+                try {
+                    _readAll(readers[y], outs[y]);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[y].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        assertNull(failure.get());
+    }
+
+    @Test(timeout = 60000)
+    public void readersGetTheSameBytes() throws InterruptedException {
+        byte[] data = _data(3000000, 7);
+        InputStream source = new ByteArrayInputStream(data);
+        ParallelStream[] readers = new ParallelStream[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new ParallelStream(source);
+        }
+        ByteArrayOutputStream[] outs = new ByteArrayOutputStream[readers.length];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            final int y = i;
+            outs[y] = new ByteArrayOutputStream();
+            threads[y] = new Thread(() -> {
+                try {
+                    if (y == 0) { // byte by byte
+                        int b;
+                        while ((b = readers[y].read()) >= 0) {
+                            outs[y].write(b);
+                        }
+                        readers[y].close();
+                    } else {
+                        _readAll(readers[y], outs[y]);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[y].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        for (int i = 0; i < readers.length; i++) {
+            assertEquals(data.length, outs[i].size());
+            assertEquals(Arrays.hashCode(data), Arrays.hashCode(outs[i].toByteArray()));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void detachedReaderIsSpilledAboveTheBudget() throws IOException {
+        byte[] data = _data(5000000, 2);
+        InputStream source = new ByteArrayInputStream(data);
+        ParallelStream p0 = new ParallelStream(source);
+        ParallelStream p1 = new ParallelStream(source);
+        p0.setDetachedMemoryBudget(100000);
+        ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+        _readChunks(p1, out1, 1);
+        p1.detachTemporarily();
+
+        byte[] out0 = _readAll(p0);
+        assertTrue(p1.getSpilledBytes() > 0);
+        assertTrue(p1.getRetainedBytes() <= 100000 + 1024 * 1024); // the budget and a chunk at most
+        p0.close();
+
+        _readChunks(p1, out1, 10); // a detached reader reads what is kept for it
+        p1.reattach();
+        out1.write(_readAll(p1));
+        p1.close();
+        assertArrayEquals(data, out0);
+        assertArrayEquals(data, out1.toByteArray());
+        assertEquals(0, p1.getSpilledBytes());
+    }
+
+    @Test(timeout = 60000)
+    public void randomDetachAndReattach() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            byte[] data = _data(CHUNK * 2000, round);
+            InputStream source = _chunked(data);
+            int count = 6;
+            ParallelStream[] readers = new ParallelStream[count];
+            for (int i = 0; i < count; i++) {
+                readers[i] = new ParallelStream(source, 8);
+            }
+            ByteArrayOutputStream[] outs = new ByteArrayOutputStream[count];
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[count];
+            for (int i = 0; i < count; i++) {
+                final int y = i;
+                final long seed = round * 100 + i;
+                outs[y] = new ByteArrayOutputStream();
+                threads[y] = new Thread(() -> {
+                    try {
+                        Random random = new Random(seed);
+                        byte[] buf = new byte[1 + random.nextInt(3 * CHUNK)];
+                        int len;
+                        while ((len = readers[y].read(buf, 0, 1 + random.nextInt(buf.length))) >= 0) {
+                            outs[y].write(buf, 0, len);
+                            if (random.nextInt(20) == 0) {
+                                readers[y].detachTemporarily();
+                                if (random.nextBoolean()) {
+                                    Thread.sleep(random.nextInt(3));
+                                }
+                                readers[y].reattach();
+                            }
+                        }
+                        readers[y].close();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                threads[y].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull("round " + round, failure.get());
+            for (int i = 0; i < count; i++) {
+                assertEquals("round " + round + " reader " + i, data.length, outs[i].size());
+                assertArrayEquals("round " + round + " reader " + i, data, outs[i].toByteArray());
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void detachAfterAnotherReaderReattached() throws IOException {
+        byte[] data = _data(CHUNK * 40, 1);
+        InputStream source = _chunked(data);
+        ParallelStream p0 = new ParallelStream(source);
+        ParallelStream a = new ParallelStream(source);
+        ParallelStream b = new ParallelStream(source);
+        ParallelStream c = new ParallelStream(source);
+        ParallelStream[] readers = {p0, a, b, c};
+        ByteArrayOutputStream[] outs = new ByteArrayOutputStream[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            outs[i] = new ByteArrayOutputStream();
+            _readChunks(readers[i], outs[i], 1);
+        }
+
+        a.detachTemporarily();
+        _readChunks(p0, outs[0], 2);
+        _readChunks(b, outs[2], 2);
+        _readChunks(c, outs[3], 2);
+        a.reattach();
+        _readChunks(p0, outs[0], 6);
+        _readChunks(b, outs[2], 3);
+        b.detachTemporarily();
+        c.detachTemporarily();
+        b.reattach();
+        c.reattach();
+
+        _readAllInParallel(readers, outs);
+        for (int i = 0; i < readers.length; i++) {
+            assertArrayEquals("reader " + i, data, outs[i].toByteArray());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void mappedFileReaders() throws IOException, InterruptedException {
+        byte[] data = _data(3000000, 3);
+        Path file = Files.write(Files.createTempFile("mapped", ".bin"), data);
+        try {
+            ParallelStream first = ParallelStream.open(file);
+            ParallelStream[] readers = {first, new ParallelStream(first), new ParallelStream(first)};
+            ByteArrayOutputStream[] outs = new ByteArrayOutputStream[readers.length];
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                final int y = i;
+                outs[y] = new ByteArrayOutputStream();
+                threads[y] = new Thread(() -> {
+                    try {
+                        if (y == 0) {
+                            readers[y].transferTo(Channels.newChannel(outs[y]));
+                        } else {
+                            byte[] buf = new byte[10000 + y];
+                            int len;
+                            int reads = 0;
+                            while ((len = readers[y].read(buf)) >= 0) {
+                                outs[y].write(buf, 0, len);
+                                if (y == 2 && ++reads % 50 == 0) {
+                                    readers[y].detachTemporarily();
+                                    Thread.sleep(2);
+                                    readers[y].reattach();
+                                }
+                            }
+                        }
+                        readers[y].close();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                threads[y].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+            for (int i = 0; i < readers.length; i++) {
+                assertArrayEquals("reader " + i, data, outs[i].toByteArray());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void teeCopiesToEverySinkButTheFailingOne() throws InterruptedException, ExecutionException {
+        byte[] data = _data(3000000, 4);
+        for (ParallelStream.SlowSinkPolicy policy : ParallelStream.SlowSinkPolicy.values()) {
+            ByteArrayOutputStream[] outs = new ByteArrayOutputStream[4];
+            OutputStream[] sinks = new OutputStream[5];
+            for (int i = 0; i < outs.length; i++) {
+                sinks[i] = outs[i] = new ByteArrayOutputStream();
+            }
+            sinks[3] = new FilterOutputStream(outs[3]) {
+                private int _writes = 0;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (++_writes % 20 == 0) {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    out.write(b, off, len);
+                }
+            };
+            sinks[4] = new OutputStream() {
+                private int _written = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    if (++_written > 1000) {
+                        throw new IOException("The sink is broken");
+                    }
+                }
+            };
+            ExecutorService executor = Executors.newCachedThreadPool();
+            ParallelStream.TeeResult result = ParallelStream.tee(executor, policy, new ByteArrayInputStream(data), sinks).get();
+            executor.shutdown();
+
+            assertFalse(result.isSuccessful());
+            assertEquals(IOException.class, result.getFailure(4).getClass());
+            for (int i = 0; i < outs.length; i++) {
+                if (policy == ParallelStream.SlowSinkPolicy.DROP && result.getFailure(i) != null) {
+                    continue; // any sink a whole ring behind may be dropped
+                }
+                assertNull(policy + " sink " + i, result.getFailure(i));
+                assertEquals(policy + " sink " + i, data.length, result.getBytes(i));
+                assertArrayEquals(policy + " sink " + i, data, outs[i].toByteArray());
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void teeCopiesFileToChannels() throws IOException, InterruptedException, ExecutionException {
+        byte[] data = _data(3000000, 5);
+        Path source = Files.createTempFile("tee", ".bin");
+        Path[] targets = new Path[3];
+        WritableByteChannel[] sinks = new WritableByteChannel[targets.length];
+        ExecutorService executor = Executors.newFixedThreadPool(targets.length);
+        try (FileChannel channel = FileChannel.open(Files.write(source, data))) {
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = Files.createTempFile("tee", ".bin");
+                sinks[i] = FileChannel.open(targets[i], StandardOpenOption.WRITE);
+            }
+            ParallelStream.TeeResult result = ParallelStream.tee(executor, ParallelStream.SlowSinkPolicy.BLOCK, channel, sinks).get();
+            assertTrue(result.isSuccessful());
+            for (int i = 0; i < targets.length; i++) {
+                sinks[i].close();
+                assertArrayEquals("sink " + i, data, Files.readAllBytes(targets[i]));
+            }
+        } finally {
+            executor.shutdown();
+            Files.delete(source);
+            for (Path target : targets) {
+                if (target != null) {
+                    Files.delete(target);
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void teeWritesMappedChunksToStreams() throws IOException, InterruptedException, ExecutionException {
+        byte[] data = _data(3000000, 10);
+        Path file = Files.write(Files.createTempFile("tee", ".bin"), data);
+        try (ParallelStream source = ParallelStream.open(file)) { // direct chunks, the ring holds the whole file
+            ByteArrayOutputStream[] outs = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+            ParallelStream.TeeResult result = ParallelStream.tee(source, outs).get();
+            assertTrue(result.isSuccessful());
+            for (int i = 0; i < outs.length; i++) {
+                assertArrayEquals("sink " + i, data, outs[i].toByteArray());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void chunkSizingPolicyStartsAtItsInitialSize() throws IOException {
+        byte[] data = _data(100000, 3);
+        ParallelStream reader = new ParallelStream(new ByteArrayInputStream(data));
+        reader.setChunkSizingPolicy(new ParallelStream.AdaptiveChunkSizing(100, 65536) {
+            @Override
+            public int getInitialSize() {
+                return 2000;
+            }
+        });
+        assertEquals(2000, reader.getMetrics().getChunkSize());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        _readAll(reader, out);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunkSizingPolicyNeedsPositiveInitialSize() {
+        ParallelStream reader = new ParallelStream(new ByteArrayInputStream(new byte[1]));
+        reader.setChunkSizingPolicy(new ParallelStream.AdaptiveChunkSizing(1000, 4000) {
+            @Override
+            public int getInitialSize() {
+                return 0;
+            }
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void chunksAreReused() throws IOException, InterruptedException {
+        byte[] data = _data(20000000, 6);
+        ParallelStream p = new ParallelStream(new ByteArrayInputStream(data));
+        ParallelStream q = new ParallelStream(p);
+        AtomicReference<byte[]> other = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                other.set(_readAll(q));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        byte[] read = _readAll(p);
+        thread.join();
+        assertArrayEquals(data, read);
+        assertArrayEquals(data, other.get());
+        assertTrue(p.getReusedChunks() > 0);
+        p.close();
+        q.close();
+    }
+
+    @Test(timeout = 60000)
+    public void publisherFeedsEverySubscriber() throws InterruptedException {
+        byte[] data = _data(5000000, 5);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ParallelStream.Publisher<ByteBuffer> publisher = ParallelStream.publish(new ByteArrayInputStream(data), executor);
+        int count = 50;
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger complete = new AtomicInteger();
+        AtomicReference<String> failure = new AtomicReference<>();
+        ParallelStream.Subscription[] subscriptions = new ParallelStream.Subscription[count];
+        for (int i = 0; i < count; i++) {
+            final int y = i;
+            publisher.subscribe(new ParallelStream.Subscriber<ByteBuffer>() {
+                private int _pos = 0;
+                private int _outstanding = 1 + y % 5;
+
+                @Override
+                public void onSubscribe(ParallelStream.Subscription subscription) {
+                    subscriptions[y] = subscription;
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    while (item.hasRemaining()) {
+                        if (item.get() != data[_pos++]) {
+                            failure.compareAndSet(null, "subscriber " + y + " got a wrong byte at " + (_pos - 1));
+                            subscriptions[y].cancel();
+                            done.countDown();
+                            return;
+                        }
+                    }
+                    if (y == 7 && _pos > 1000000) {
+                        subscriptions[y].cancel();
+                        done.countDown();
+                        return;
+                    }
+                    if (y % 3 != 0 && --_outstanding == 0) {
+                        _outstanding = 1 + y % 5;
+                        subscriptions[y].request(_outstanding);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    failure.compareAndSet(null, "subscriber " + y + " failed: " + throwable);
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    if (_pos == data.length) {
+                        complete.incrementAndGet();
+                    } else {
+                        failure.compareAndSet(null, "subscriber " + y + " completed at " + _pos);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < count; i++) { // all subscribe before any asks, so none is ahead
+            subscriptions[i].request(i % 3 == 0 ? Long.MAX_VALUE : 1 + i % 5);
+        }
+        assertTrue(done.await(50, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertNull(failure.get());
+        assertEquals(count - 1, complete.get());
+    }
+
+    @Test(timeout = 60000)
+    public void replayStartsFromTheWindow() throws IOException, InterruptedException {
+        byte[] data = _data(10000000, 9);
+        int consumed = 3000000;
+        for (long window : new long[]{Long.MAX_VALUE, 1000000, 0}) {
+            for (long budget : new long[]{64L << 20, 100000}) {
+                ParallelStream p = new ParallelStream(new ByteArrayInputStream(data), 4);
+                p.setChunkSizingPolicy(new ParallelStream.AdaptiveChunkSizing(8192, 8192)); // the source is a ring ahead at most
+                p.setReplayWindow(window);
+                p.setDetachedMemoryBudget(budget);
+                byte[] head = new byte[consumed];
+                int read = 0;
+                while (read < head.length) {
+                    read += p.read(head, read, head.length - read);
+                }
+
+                ParallelStream q = ParallelStream.replay(p);
+                AtomicReference<byte[]> replayed = new AtomicReference<>();
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+                Thread thread = new Thread(() -> {
+                    try {
+                        replayed.set(_readAll(q));
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                });
+                thread.start();
+                byte[] rest = _readAll(p);
+                thread.join();
+                p.close();
+                q.close();
+
+                String test = "window " + window + " budget " + budget;
+                assertNull(test, failure.get());
+                assertArrayEquals(test, Arrays.copyOfRange(data, consumed, data.length), rest);
+                int from = data.length - replayed.get().length;
+                assertArrayEquals(test, Arrays.copyOfRange(data, from, data.length), replayed.get());
+                if (window == Long.MAX_VALUE) {
+                    assertEquals(test, 0, from);
+                } else if (window > 0) {
+                    assertTrue(test + " from " + from, from <= consumed + 4 * 8192 - window);
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void metricsAreRegisteredWhileTheSourceIsOpen() throws IOException, JMException {
+        ParallelStream p = new ParallelStream(new ByteArrayInputStream(_data(1000000, 8)));
+        ParallelStream q = new ParallelStream(p);
+        ParallelStream d = new ParallelStream(p);
+        d.detachTemporarily();
+        ObjectName name = p.registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        byte[] buf = new byte[100000];
+        int read = p.read(buf);
+        assertEquals(2, server.getAttribute(name, "ReaderCount")); // the attached ones
+        assertEquals(1, server.getAttribute(name, "DetachedReaderCount"));
+        assertTrue(p.getMetrics().getBytesRead() >= read);
+        assertTrue(q.getLag() > 0);
+        q.close();
+        d.close();
+        _readAll(p);
+        p.close();
+        assertFalse(server.isRegistered(name));
+    }
+
+    private static Throwable _readSlowly(ParallelStream reader, byte[] data, long pauseMillis) {
+        try {
+            byte[] buf = new byte[7000];
+            int pos = 0;
+            int len;
+            int reads = 0;
+            while ((len = reader.read(buf)) >= 0) {
+                for (int i = 0; i < len; i++) {
+                    if (buf[i] != data[pos + i]) {
+                        return new AssertionError("Wrong byte at " + (pos + i));
+                    }
+                }
+                pos += len;
+                if (++reads == 3) {
+                    Thread.sleep(pauseMillis);
+                }
+            }
+            reader.close();
+            return pos == data.length ? null : new AssertionError("Only " + pos + " bytes read");
+        } catch (Throwable e) {
+            return e;
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void slowReaderPolicies() throws InterruptedException {
+        byte[] data = _data(10000000, 1);
+        for (ParallelStream.SlowReaderPolicy policy : ParallelStream.SlowReaderPolicy.values()) {
+            ParallelStream p0 = new ParallelStream(new ByteArrayInputStream(data), 4);
+            p0.setChunkSizingPolicy(new ParallelStream.AdaptiveChunkSizing(8192, 8192)); // so the ring can't hold it all
+            p0.setSlowReaderPolicy(policy, 100);
+            ParallelStream[] readers = {p0, new ParallelStream(p0), new ParallelStream(p0)};
+            Throwable[] failures = new Throwable[readers.length];
+            Thread[] threads = new Thread[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                final int y = i;
+                threads[y] = new Thread(() -> failures[y] = _readSlowly(readers[y], data, y == 2 ? 500 : 0));
+                threads[y].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            switch (policy) {
+                case WAIT:
+                case DETACH:
+                    for (int i = 0; i < readers.length; i++) {
+                        assertNull(policy + " reader " + i, failures[i]);
+                    }
+                    break;
+                case EVICT:
+                    assertNull(policy + " reader 0", failures[0]);
+                    assertNull(policy + " reader 1", failures[1]);
+                    assertTrue(policy + " slow reader", failures[2] instanceof IOException);
+                    break;
+                case FAIL:
+                    assertTrue(policy + " reader 0", failures[0] instanceof IOException);
+                    assertTrue(policy + " reader 1", failures[1] instanceof IOException);
+                    break;
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void sourceGivingNothingIsWaitedFor() throws IOException {
+        byte[] data = _data(CHUNK * 50, 4);
+        InputStream source = new ByteArrayInputStream(data) {
+            private boolean _nothing = false;
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                _nothing = !_nothing;
+                return _nothing ? 0 : super.read(b, off, Math.min(len, CHUNK));
+            }
+        };
+        ParallelStream[] readers = {new ParallelStream(source), new ParallelStream(source)};
+        ByteArrayOutputStream[] outs = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+        _readAllInParallel(readers, outs);
+        for (int i = 0; i < readers.length; i++) {
+            assertArrayEquals("reader " + i, data, outs[i].toByteArray());
+        }
+    }
+
+}
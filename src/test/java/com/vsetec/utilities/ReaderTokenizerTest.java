@@ -0,0 +1,241 @@
+/*
+ * Copyright 2019 fedd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vsetec.utilities;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author fedd
+ */
+public class ReaderTokenizerTest {
+
+    /**
+     * Gives the text in random small pieces, so that the tokens and the
+     * delimiters straddle the reads.
+     */
+    private static class ChoppyReader extends StringReader {
+
+        private final Random _random;
+        private boolean _closed = false;
+
+        private ChoppyReader(String text, long seed) {
+            super(text);
+            _random = new Random(seed);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, 1 + _random.nextInt(7)));
+        }
+
+        @Override
+        public void close() {
+            _closed = true;
+            super.close();
+        }
+    }
+
+    /**
+     * @return the tokens found the simple way: each ends with the delimiter,
+     * the last is what follows the last delimiter, and the header is
+     * prepended to the following ones
+     */
+    private static List<String> _expected(String text, String delimiter, int headerTokenNumber) {
+        List<String> ret = new ArrayList<>();
+        StringBuilder header = new StringBuilder();
+        int position = 0;
+        int headerTokens = 0;
+        while (true) {
+            int found = text.indexOf(delimiter, position);
+            String token = found < 0 ? text.substring(position) : text.substring(position, found + delimiter.length());
+            if (headerTokens < headerTokenNumber) {
+                header.append(token);
+                headerTokens++;
+            } else {
+                ret.add(header + token);
+            }
+            if (found < 0) {
+                return ret;
+            }
+            position = found + delimiter.length();
+        }
+    }
+
+    private static List<String> _tokens(Iterator<String> tokens) {
+        List<String> ret = new ArrayList<>();
+        while (tokens.hasNext()) {
+            ret.add(tokens.next());
+        }
+        return ret;
+    }
+
+    private static List<String> _tokens(Reader reader, String delimiter, int headerTokenNumber) throws IOException {
+        return _tokens(new ReaderTokenizer().tokenizeWithHeaderAndDelimiter(reader, delimiter, headerTokenNumber));
+    }
+
+    private static String _random(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void delimitersAcrossTheBlocks() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int shift = 0; shift < 4; shift++) { // the delimiter around the end of the first block
+            sb.setLength(0);
+            for (int i = 0; i < 8191 - shift; i++) {
+                sb.append((char) ('a' + i % 26));
+            }
+            sb.append("\r\n").append("short\r\n");
+            for (int i = 0; i < 20000; i++) { // a token longer than two blocks
+                sb.append('y');
+            }
+            sb.append("\r\nlast");
+            String text = sb.toString();
+            assertEquals(_expected(text, "\r\n", 0), _tokens(new StringReader(text), "\r\n", 0));
+            assertEquals(_expected(text, "\r\n", 1), _tokens(new ChoppyReader(text, shift), "\r\n", 1));
+        }
+    }
+
+    @Test
+    public void selfOverlappingDelimiters() throws IOException {
+        assertEquals(Arrays.asList("aaab", ""), _tokens(new StringReader("aaab"), "aab", 0));
+        assertEquals(Arrays.asList("x\r\ny\r\n\r\n", "z"), _tokens(new StringReader("x\r\ny\r\n\r\nz"), "\r\n\r\n", 0));
+        assertEquals(Arrays.asList("a\r\n\r\r\n\r\n", "b"), _tokens(new StringReader("a\r\n\r\r\n\r\nb"), "\r\n\r\n", 0));
+        assertEquals(Arrays.asList("abababc", "ab"), _tokens(new StringReader("abababcab"), "ababc", 0));
+
+        Random random = new Random(16);
+        for (String delimiter : new String[]{"aab", "aa", "aba", "abab", "ababc", "\r\n\r\n"}) {
+            for (int round = 0; round < 200; round++) {
+                String text = _random(random, delimiter.equals("\r\n\r\n") ? "\r\nx" : "abc", random.nextInt(60));
+                String test = delimiter + " in " + text;
+                assertEquals(test, _expected(text, delimiter, 0), _tokens(new StringReader(text), delimiter, 0));
+                assertEquals(test, _expected(text, delimiter, 1), _tokens(new ChoppyReader(text, round), delimiter, 1));
+            }
+        }
+    }
+
+    private static String _lines(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(_random(random, "ab\u20ac\u0436\u0436\u20ac", random.nextInt(80)));
+            if (random.nextInt(10) == 0) {
+                sb.append("\ud83d\ude00"); // four bytes
+            }
+            sb.append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static void _assertFileTokens(String text, Charset charset, String delimiter, int headerTokenNumber) throws IOException {
+        Path file = Files.createTempFile("tokens", ".txt");
+        try {
+            Files.write(file, text.getBytes(charset));
+            List<String> sequential = _tokens(new InputStreamReader(Files.newInputStream(file), charset), delimiter, headerTokenNumber);
+            try (Stream<String> tokens = new ReaderTokenizer().tokenizeFileWithHeaderAndDelimiter(file, charset, delimiter, headerTokenNumber)) {
+                List<String> parallel = tokens.collect(Collectors.toList());
+                assertEquals(charset + " " + delimiter.length() + " " + headerTokenNumber, sequential.size(), parallel.size());
+                assertEquals(sequential, parallel);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void fileRangesGiveTheSequentialTokens() throws IOException {
+        Random random = new Random(17);
+        // most of the bytes are in the multi-byte chars and the delimiters,
+        // so the ranges mostly are looked for from the middle of them
+        String lines = _lines(random, 40000);
+        for (int shift = 0; shift < 3; shift++) {
+            String text = "xy".substring(0, shift) + lines;
+            for (String delimiter : new String[]{"\r\n", "\n"}) {
+                _assertFileTokens(text, StandardCharsets.UTF_8, delimiter, 0);
+                _assertFileTokens(text, StandardCharsets.UTF_8, delimiter, 2);
+            }
+        }
+        String latin = _random(random, "ab\u00e9\n", 3000000);
+        _assertFileTokens(latin, StandardCharsets.ISO_8859_1, "\n", 1);
+        _assertFileTokens(latin, StandardCharsets.UTF_16, "\n", 1); // not split
+        _assertFileTokens(_random(random, "ab", 100000), StandardCharsets.UTF_8, "aba", 1); // overlaps itself, not split
+        _assertFileTokens("header\r\n", StandardCharsets.UTF_8, "\r\n", 3);
+    }
+
+    @Test
+    public void visitorGetsTheIteratorTokensAndCanStop() throws IOException {
+        String text = _lines(new Random(18), 3000);
+        List<String> iterated = _tokens(new StringReader(text), "\r\n", 2);
+        List<String> unheaded = _tokens(new StringReader(text), "\r\n", 0);
+        String header = unheaded.get(0) + unheaded.get(1);
+
+        List<String> visited = new ArrayList<>();
+        new ReaderTokenizer().tokenizeWithHeaderAndDelimiter(new ChoppyReader(text, 1), "\r\n", 2, (visitedHeader, token) -> {
+            assertEquals(header, visitedHeader.toString());
+            visited.add(visitedHeader.toString() + token);
+            return true;
+        });
+        assertEquals(iterated, visited);
+
+        ChoppyReader reader = new ChoppyReader(text, 2);
+        List<String> first = new ArrayList<>();
+        new ReaderTokenizer("\r\n", 2).tokenize(reader, (visitedHeader, token) -> {
+            first.add(visitedHeader.toString() + token);
+            return first.size() < 3;
+        });
+        assertEquals(iterated.subList(0, 3), first);
+        assertTrue(reader._closed);
+    }
+
+    @Test
+    public void streamGivesTheIteratorTokensAndClosesTheReader() throws IOException {
+        String text = _lines(new Random(20), 3000);
+        List<String> iterated = _tokens(new StringReader(text), "\r\n", 1);
+        try (Stream<String> tokens = new ReaderTokenizer("\r\n", 1).tokenizeAsStream(new ChoppyReader(text, 3))) {
+            assertEquals(iterated, tokens.collect(Collectors.toList()));
+        }
+
+        ChoppyReader reader = new ChoppyReader(text, 4);
+        try (Stream<String> tokens = new ReaderTokenizer("\r\n", 1).tokenizeAsStream(reader)) {
+            assertEquals(iterated.get(0), tokens.findFirst().get());
+            assertFalse(reader._closed);
+        }
+        assertTrue(reader._closed);
+    }
+
+}